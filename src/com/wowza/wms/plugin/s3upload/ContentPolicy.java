@@ -0,0 +1,121 @@
+/*
+ * This code and all components (c) Copyright 2006 - 2018, Wowza Media Systems, LLC. All rights reserved.
+ * This code is licensed pursuant to the Wowza Public License version 1.0, available at www.wowza.com/legal.
+ */
+package com.wowza.wms.plugin.s3upload;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Decides which files are gzipped on the way to S3, from the list of suffixes in s3UploadCompressSuffixes, and the Content-Type they are stored with.
+ * Files are compressed in memory so only files up to maxSize, which must be set, are compressed. Anything else, including all media files, is uploaded as is.
+ */
+class ContentPolicy
+{
+	private static final Map<String, String> contentTypes = new HashMap<String, String>();
+
+	static
+	{
+		contentTypes.put(".m3u8", "application/vnd.apple.mpegurl");
+		contentTypes.put(".mpd", "application/dash+xml");
+		contentTypes.put(".vtt", "text/vtt");
+		contentTypes.put(".srt", "application/x-subrip");
+		contentTypes.put(".ttml", "application/ttml+xml");
+		contentTypes.put(".dfxp", "application/ttml+xml");
+		contentTypes.put(".scc", "text/plain");
+		contentTypes.put(".json", "application/json");
+		contentTypes.put(".xml", "application/xml");
+		contentTypes.put(".smil", "application/smil+xml");
+		contentTypes.put(".txt", "text/plain");
+		contentTypes.put(".csv", "text/csv");
+	}
+
+	private final List<String> suffixes = new ArrayList<String>();
+	private final long maxSize;
+
+	ContentPolicy(String suffixList, long maxSize)
+	{
+		for (String suffix : suffixList.split(","))
+		{
+			suffix = suffix.trim().toLowerCase();
+			if (suffix.length() == 0)
+				continue;
+			suffixes.add(suffix.startsWith(".") ? suffix : "." + suffix);
+		}
+		if (maxSize <= 0)
+			throw new IllegalArgumentException("maxSize must be greater than 0: " + maxSize);
+		this.maxSize = maxSize;
+	}
+
+	boolean shouldCompress(File file)
+	{
+		if (file.length() > maxSize)
+			return false;
+		String name = file.getName().toLowerCase();
+		for (String suffix : suffixes)
+		{
+			if (name.endsWith(suffix))
+				return true;
+		}
+		return false;
+	}
+
+	static String getContentType(String name)
+	{
+		int index = name.lastIndexOf('.');
+		if (index < 0)
+			return null;
+		return contentTypes.get(name.substring(index).toLowerCase());
+	}
+
+	static byte[] gzip(File file) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream((int)Math.min(file.length() / 4 + 1024, Integer.MAX_VALUE));
+		FileInputStream fis = null;
+		GZIPOutputStream gzip = null;
+		try
+		{
+			fis = new FileInputStream(file);
+			gzip = new GZIPOutputStream(bytes, 65536);
+			byte[] buffer = new byte[65536];
+			int len;
+			while ((len = fis.read(buffer)) != -1)
+			{
+				gzip.write(buffer, 0, len);
+			}
+			gzip.finish();
+		}
+		finally
+		{
+			if (fis != null)
+			{
+				try
+				{
+					fis.close();
+				}
+				catch (IOException e)
+				{
+				}
+			}
+			if (gzip != null)
+			{
+				try
+				{
+					gzip.close();
+				}
+				catch (IOException e)
+				{
+				}
+			}
+		}
+		return bytes.toByteArray();
+	}
+}
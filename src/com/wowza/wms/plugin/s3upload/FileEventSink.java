@@ -0,0 +1,71 @@
+/*
+ * This code and all components (c) Copyright 2006 - 2018, Wowza Media Systems, LLC. All rights reserved.
+ * This code is licensed pursuant to the Wowza Public License version 1.0, available at www.wowza.com/legal.
+ */
+package com.wowza.wms.plugin.s3upload;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import com.wowza.util.StringUtils;
+import com.wowza.wms.application.IApplicationInstance;
+import com.wowza.wms.application.WMSProperties;
+
+/**
+ * Appends each event as a line of JSON to s3UploadEventFile (default [storage-dir]/s3upload-events.jsonl).
+ */
+public class FileEventSink implements IUploadEventSink
+{
+	public static final String DEFAULT_FILE_NAME = "s3upload-events.jsonl";
+
+	private File file = null;
+
+	@Override
+	public void init(IApplicationInstance appInstance, WMSProperties properties)
+	{
+		String path = properties.getPropertyStr("s3UploadEventFile");
+		if (StringUtils.isEmpty(path))
+			file = new File(appInstance.decodeStorageDir(appInstance.getStreamStorageDir()), DEFAULT_FILE_NAME);
+		else
+			file = new File(appInstance.decodeStorageDir(path));
+	}
+
+	@Override
+	public void send(List<UploadEvent> events) throws IOException
+	{
+		BufferedWriter writer = null;
+		try
+		{
+			writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+			for (UploadEvent event : events)
+			{
+				writer.write(event.toJSON());
+				writer.newLine();
+			}
+		}
+		finally
+		{
+			if (writer != null)
+			{
+				try
+				{
+					writer.close();
+				}
+				catch (IOException e)
+				{
+				}
+			}
+		}
+	}
+
+	@Override
+	public void close()
+	{
+		// no-op
+	}
+}
@@ -0,0 +1,24 @@
+/*
+ * This code and all components (c) Copyright 2006 - 2018, Wowza Media Systems, LLC. All rights reserved.
+ * This code is licensed pursuant to the Wowza Public License version 1.0, available at www.wowza.com/legal.
+ */
+package com.wowza.wms.plugin.s3upload;
+
+import java.util.List;
+
+import com.wowza.wms.application.IApplicationInstance;
+import com.wowza.wms.application.WMSProperties;
+
+/**
+ * Receives batches of upload events from the module's event bus.
+ * Sinks are called from the event bus thread, never from an upload thread, so they can take their time. Events that arrive while the bus is full are dropped.
+ * Custom sinks are added to s3UploadEventSinks by class name and need a public no argument constructor.
+ */
+public interface IUploadEventSink
+{
+	public void init(IApplicationInstance appInstance, WMSProperties properties);
+
+	public void send(List<UploadEvent> events) throws Exception;
+
+	public void close();
+}
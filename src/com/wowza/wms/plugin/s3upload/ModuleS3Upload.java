@@ -4,11 +4,18 @@
  */
 package com.wowza.wms.plugin.s3upload;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -17,35 +24,51 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 import com.amazonaws.AmazonServiceException;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.SdkClientException;
 import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.auth.AWSStaticCredentialsProvider;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.auth.profile.ProfileCredentialsProvider;
+import com.amazonaws.client.builder.AwsClientBuilder;
 import com.amazonaws.event.ProgressEvent;
 import com.amazonaws.event.ProgressEventType;
 import com.amazonaws.regions.Regions;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
 import com.amazonaws.services.s3.model.AccessControlList;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
 import com.amazonaws.services.s3.model.CannedAccessControlList;
 import com.amazonaws.services.s3.model.GroupGrantee;
 import com.amazonaws.services.s3.model.HeadBucketRequest;
 import com.amazonaws.services.s3.model.HeadBucketResult;
 import com.amazonaws.services.s3.model.ListMultipartUploadsRequest;
+import com.amazonaws.services.s3.model.ListPartsRequest;
+import com.amazonaws.services.s3.model.MultipartUpload;
 import com.amazonaws.services.s3.model.MultipartUploadListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.Permission;
 import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.amazonaws.services.s3.transfer.PersistableTransfer;
+import com.amazonaws.services.s3.transfer.PauseResult;
 import com.amazonaws.services.s3.transfer.PersistableUpload;
 import com.amazonaws.services.s3.transfer.TransferManager;
 import com.amazonaws.services.s3.transfer.TransferManagerBuilder;
 import com.amazonaws.services.s3.transfer.Upload;
+import com.amazonaws.services.s3.transfer.model.UploadResult;
 import com.amazonaws.services.s3.transfer.internal.S3SyncProgressListener;
 import com.wowza.util.JSON;
 import com.wowza.util.StringUtils;
@@ -170,14 +193,14 @@ public class ModuleS3Upload extends ModuleBase
 			if (debugLog)
 				logger.info(MODULE_NAME + ".onWriteComplete [" + appInstance.getContextStr() + "/" + mediaName + "]", WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
 
-			if (transferManager == null)
-			{
-				logger.warn(MODULE_NAME + ".WriteListener.onWriteComplete Cannot upload file because S3 Transfer Manager isn't loaded: [" + appInstance.getContextStr() + "/" + mediaName + "]");
-			}
-
 			File uploadFile = null;
 			synchronized(lock)
 			{
+				if (initFailed)
+				{
+					logger.warn(MODULE_NAME + ".WriteListener.onWriteComplete Cannot upload file because S3 Transfer Manager isn't loaded: [" + appInstance.getContextStr() + "/" + mediaName + "]");
+				}
+
 				try
 				{
 					uploadFile = new File(file.getPath() + ".upload");
@@ -186,15 +209,43 @@ public class ModuleS3Upload extends ModuleBase
 						if (debugLog)
 							logger.info(MODULE_NAME + ".onWriteComplete .upload file exists (deleting) [" + appInstance.getContextStr() + "/" + mediaName + "]", WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
 						uploadFile.delete();
+						// new recording so it gets a new key.
+						if (keyManifest.remove(mediaName) != null)
+							storeProperties(keyManifestFile, keyManifest, MODULE_NAME + " upload keys");
 					}
 					uploadFile.createNewFile();
-					if (!shuttingDown)
-						startUpload(mediaName, uploadDelay);
+					publishEvent(UploadEvent.Type.QUEUED, mediaName, null, -1, file.length(), null, null);
+					if (!shuttingDown && !initFailed)
+					{
+						if (transferManagerReady)
+						{
+							startUpload(mediaName, uploadDelay);
+						}
+						else if (!pendingUploads.contains(mediaName))
+						{
+							// S3 client is still starting up. Hold on to the upload until it's ready.
+							if (debugLog)
+								logger.info(MODULE_NAME + ".onWriteComplete S3 Transfer Manager not ready, queueing upload [" + appInstance.getContextStr() + "/" + mediaName + "]", WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
+							pendingUploads.add(mediaName);
+						}
+					}
 				}
 				catch (IOException e)
 				{
 					logger.error(MODULE_NAME + ".WriteListener.onWriteComplete Cannot create .upload file: [" + appInstance.getContextStr() + "/" + mediaName + "]", e);
 				}
+				// the file hasn't been uploaded in its current form so it isn't safe to delete. The .upload file already keeps it from being evicted so a failure here doesn't hold up the upload.
+				if (retentionManager != null)
+				{
+					try
+					{
+						retentionManager.replaced(mediaName);
+					}
+					catch (IOException e)
+					{
+						logger.warn(MODULE_NAME + ".WriteListener.onWriteComplete Cannot update retention index: [" + appInstance.getContextStr() + "/" + mediaName + "]", e);
+					}
+				}
 			}
 		}
 
@@ -209,16 +260,35 @@ public class ModuleS3Upload extends ModuleBase
 	{
 		final String mediaName;
 		final String uploadName;
+		final Upload upload;
+		final long size;
+		// parts are sent on several threads at once.
+		final AtomicInteger lastMilestone = new AtomicInteger();
 
-		ProgressListener(String mediaName, String uploadName)
+		ProgressListener(String mediaName, String uploadName, Upload upload, long size)
 		{
 			this.mediaName = mediaName;
 			this.uploadName = uploadName;
+			this.upload = upload;
+			this.size = size;
 		}
 
 		@Override
 		public void progressChanged(ProgressEvent progressEvent)
 		{
+			if (progressEvent.getEventType() == ProgressEventType.REQUEST_BYTE_TRANSFER_EVENT)
+			{
+				// called on the thread that is sending the data so waiting here slows the upload down outside of the upload windows.
+				bytesTransferred.addAndGet(progressEvent.getBytesTransferred());
+				rateLimiter.acquire(progressEvent.getBytesTransferred());
+				if (eventBus != null && eventProgressStep > 0)
+				{
+					int milestone = (int)(upload.getProgress().getPercentTransferred() / eventProgressStep);
+					int last = lastMilestone.get();
+					if (milestone > last && milestone * eventProgressStep < 100 && lastMilestone.compareAndSet(last, milestone))
+						publishEvent(UploadEvent.Type.PROGRESS, mediaName, uploadName, upload.getProgress().getBytesTransferred(), size, null, null);
+				}
+			}
 			if (progressEvent.getEventType().isTransferEvent())
 			{
 				ProgressEventType type = progressEvent.getEventType();
@@ -231,14 +301,64 @@ public class ModuleS3Upload extends ModuleBase
 					{
 						if (uploadName != null)
 							currentUploads.remove(uploadName);
+						activeUploads.remove(mediaName);
+						adminPaused.remove(mediaName);
 						File uploadFile = new File(storageDir, mediaName + ".upload");
 						uploadFile.delete();
+						if (keyManifest.remove(mediaName) != null)
+							storeProperties(keyManifestFile, keyManifest, MODULE_NAME + " upload keys");
+					}
+					UploadScheduler.getInstance().finished(ModuleS3Upload.this, mediaName, true);
+					if (retentionManager != null)
+					{
+						// keep the original as a local cache until the space is needed.
+						try
+						{
+							retentionManager.add(mediaName);
+						}
+						catch (IOException e)
+						{
+							logger.warn(MODULE_NAME + ".ProgressListener.progressChanged [" + appInstance.getContextStr() + "/" + mediaName + "] Cannot update retention index", e);
+						}
 					}
-					if (deleteOriginalFiles)
+					else if (deleteOriginalFiles)
 					{
 						File mediaFile = new File(storageDir, mediaName);
 						mediaFile.delete();
 					}
+					if (eventBus != null)
+					{
+						// wait for the result off the SDK thread.
+						appInstance.getVHost().getThreadPool().execute(new Runnable()
+						{
+
+							@Override
+							public void run()
+							{
+								try
+								{
+									UploadResult result = upload.waitForUploadResult();
+									publishEvent(UploadEvent.Type.COMPLETED, mediaName, result.getKey(), size, size, result.getETag(), null);
+								}
+								catch (Exception e)
+								{
+									publishEvent(UploadEvent.Type.COMPLETED, mediaName, uploadName, size, size, null, null);
+								}
+							}
+						});
+					}
+					if (retentionManager != null || criticalFreePercent > 0)
+					{
+						appInstance.getVHost().getThreadPool().execute(new Runnable()
+						{
+
+							@Override
+							public void run()
+							{
+								checkDiskSpace();
+							}
+						});
+					}
 					break;
 
 				case TRANSFER_FAILED_EVENT:
@@ -248,11 +368,36 @@ public class ModuleS3Upload extends ModuleBase
 					{
 						if (uploadName != null)
 							currentUploads.remove(uploadName);
+						activeUploads.remove(mediaName);
 						if (debugLog)
 							logger.info(MODULE_NAME + ".ProgressListener.progressChanged [" + appInstance.getContextStr() + "/" + mediaName + "] event: " + type.toString() + ", shutting down", WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
 						if (shuttingDown)
 							break;
 					}
+					UploadScheduler.getInstance().finished(ModuleS3Upload.this, mediaName, false);
+					if (eventBus != null)
+					{
+						appInstance.getVHost().getThreadPool().execute(new Runnable()
+						{
+
+							@Override
+							public void run()
+							{
+								String message = null;
+								try
+								{
+									Exception e = upload.waitForException();
+									if (e != null)
+										message = e.getMessage();
+								}
+								catch (InterruptedException e)
+								{
+									Thread.currentThread().interrupt();
+								}
+								publishEvent(UploadEvent.Type.FAILED, mediaName, uploadName, upload.getProgress().getBytesTransferred(), size, null, message);
+							}
+						});
+					}
 
 					if (restartFailedUploads)
 					{
@@ -263,6 +408,19 @@ public class ModuleS3Upload extends ModuleBase
 					}
 					break;
 
+				case TRANSFER_CANCELED_EVENT:
+					// paused outside of the upload window. Resumed from the .upload file when the window opens.
+					if (debugLog)
+						logger.info(MODULE_NAME + ".ProgressListener.progressChanged [" + appInstance.getContextStr() + "/" + mediaName + "] event: " + type.toString(), WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
+					synchronized(lock)
+					{
+						if (uploadName != null)
+							currentUploads.remove(uploadName);
+						activeUploads.remove(mediaName);
+					}
+					UploadScheduler.getInstance().finished(ModuleS3Upload.this, mediaName, false);
+					break;
+
 				default:
 					if (debugLog)
 						logger.info(MODULE_NAME + ".ProgressListener.progressChanged [" + appInstance.getContextStr() + "/" + mediaName + "] event: " + type.toString(), WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
@@ -283,42 +441,39 @@ public class ModuleS3Upload extends ModuleBase
 				@Override
 				public void run()
 				{
-					synchronized(lock)
-					{
-						FileOutputStream fos = null;
-						File tmp = new File(storageDir, mediaName + ".upload");
-						try
-						{
-							if (!tmp.exists())
-								tmp.createNewFile();
-							fos = new FileOutputStream(tmp);
-							transfer.serialize(fos);
-						}
-						catch (Exception e)
-						{
-
-						}
-						finally
-						{
-							if (fos != null)
-							{
-								try
-								{
-									fos.close();
-								}
-								catch (Exception e)
-								{
-								}
-							}
-						}
-					}
+					writeUploadFile(mediaName, transfer);
 				}
 			});
 		}
 	}
 
+	private class MaintenanceTask extends TimerTask
+	{
+		@Override
+		public void run()
+		{
+			if (uploadWindows != null)
+				checkUploadWindow();
+			if (retentionManager != null || criticalFreePercent > 0)
+				checkDiskSpace();
+		}
+	}
+
 	public static final String MODULE_NAME = "ModuleS3Upload";
 	public static final String PROP_NAME_PREFIX = "s3Upload";
+	public static final String REGION_CACHE_FILE_NAME = ".s3upload-regions";
+	public static final String KEY_MANIFEST_FILE_NAME = ".s3upload-keys";
+	public static final String RETENTION_INDEX_FILE_NAME = ".s3upload-retained";
+	public static final String CONTROL_DOMAIN = "com.wowza.wms.plugin.s3upload";
+	private static final long MAINTENANCE_INTERVAL = 15000l;
+	private static final long MAX_INIT_RETRY_DELAY = 300000l;
+	// key manifest entries are [time the .upload file was created] [key].
+	private static final Pattern KEY_MANIFEST_ENTRY = Pattern.compile("(\\d+) (.*)");
+	// S3 rejects requests signed more than 15 minutes away from its own clock, so the initiated time of a multipart upload can't be further out than this.
+	private static final long MAX_CLOCK_SKEW = 900000l;
+	// S3 rejects multipart uploads with parts (other than the last) outside these sizes.
+	private static final long MIN_PART_SIZE = 5242880l;
+	private static final long MAX_PART_SIZE = 5368709120l;
 
 	private WMSLogger logger = null;
 	private IApplicationInstance appInstance = null;
@@ -335,9 +490,25 @@ public class ModuleS3Upload extends ModuleBase
 	private String filePrefix = null;
 	private String endpoint = null;
 	private String regionName = null;
+	private String serviceEndpoint = null;
 	private File storageDir = null;
+	private File regionCacheFile = null;
+	private File keyManifestFile = null;
+	private Properties keyManifest = new Properties();
 	private Map<String, Timer> uploadTimers = new HashMap<String, Timer>();
 	private List<String> currentUploads = new ArrayList<String>();
+	private List<String> pendingUploads = new ArrayList<String>();
+	private Map<String, Upload> activeUploads = new HashMap<String, Upload>();
+	private List<String> heldUploads = new ArrayList<String>();
+	private List<String> adminPaused = new ArrayList<String>();
+	private ObjectName controlName = null;
+	private UploadWindows uploadWindows = null;
+	private RetentionManager retentionManager = null;
+	private volatile UploadEventBus eventBus = null;
+	private RateLimiter rateLimiter = new RateLimiter();
+	private AtomicLong bytesTransferred = new AtomicLong();
+	private Timer maintenanceTimer = null;
+	private Timer initRetryTimer = null;
 
 	private boolean checkBucket = true;
 	private boolean useDefaultRegion = true;
@@ -349,9 +520,35 @@ public class ModuleS3Upload extends ModuleBase
 	private boolean stripRecorderVersioning = true;
 	private boolean deleteOriginalFiles = false;
 	private boolean restartFailedUploads = true;
+	private boolean cacheBucketRegion = true;
+	private boolean transferManagerReady = false;
+	private boolean initFailed = false;
+	private boolean windowOpen = true;
+	private boolean adminPausedAll = false;
+	private boolean jmxControl = false;
+
+	private int keyShards = 0;
+	private int maxConcurrentUploads = 0;
+	private int retentionMinFreePercent = 0;
+	private int retentionTargetFreePercent = 0;
+	private int criticalFreePercent = 0;
+	private int eventProgressStep = 25;
+	private UploadScheduler.PriorityClass priorityClass = UploadScheduler.PriorityClass.NORMAL;
+	private ContentPolicy contentPolicy = null;
 
 	private long restartFailedUploadsTimeout = 60000l;
+	private long initRetryDelay = 5000l;
+	private int socketTimeout = 0;
 	private long uploadDelay = 0l;
+	private long uploadDeadline = 0l;
+	private long starvationTimeout = 21600000l;
+	private long multipartUploadThreshold = 0l;
+	private long minimumUploadPartSize = 0l;
+	private long compressMaxSize = 67108864l;
+	private long windowRate = 0l;
+	private long outsideWindowRate = 0l;
+	private long lastWindowCheck = -1;
+	private double windowThroughput = 0;
 	private long lastTouch = -1;
 	private long touchTimeout = 2500;
 
@@ -383,6 +580,9 @@ public class ModuleS3Upload extends ModuleBase
 				endpoint = props.getPropertyStr("s3UploadEndpoint", endpoint);
 				regionName = getRegion();
 			}
+			// S3 compatible storage. The endpoint is used as is, with path style bucket access and the region only used for signing.
+			serviceEndpoint = props.getPropertyStr("s3UploadServiceEndpoint", serviceEndpoint);
+			socketTimeout = props.getPropertyInt("s3UploadSocketTimeout", socketTimeout);
 			// if region or endpoint isn't set then use the default region.
 			// disable if region can be determined via the DefaultAwsRegionProviderChain.
 			useDefaultRegion = props.getPropertyBoolean("s3UploadUseDefaultRegion", useDefaultRegion);
@@ -399,6 +599,8 @@ public class ModuleS3Upload extends ModuleBase
 			// fix typo in property name
 			deleteOriginalFiles = props.getPropertyBoolean("s3UploadDeleteOriginalFiles", deleteOriginalFiles);
 			uploadDelay = props.getPropertyLong("s3UploadDelay", uploadDelay);
+			// first wait before trying to build the S3 client again if S3 can't be reached at startup. Doubles each time up to 5 minutes.
+			initRetryDelay = props.getPropertyLong("s3UploadInitRetryDelay", initRetryDelay);
 
 			// This value should be the URI representation of the "Group Grantee" found here http://docs.aws.amazon.com/AmazonS3/latest/dev/acl-overview.html under "Amazon S3 Predefined Groups"
 			String aclGroupGranteeUri = props.getPropertyStr("s3UploadACLGroupGranteeUri");
@@ -435,8 +637,134 @@ public class ModuleS3Upload extends ModuleBase
 				}
 			}
 
-			AmazonS3 s3Client = null;
+			regionCacheFile = new File(storageDir, REGION_CACHE_FILE_NAME);
+			cacheBucketRegion = props.getPropertyBoolean("s3UploadCacheBucketRegion", cacheBucketRegion);
+			// spread uploads over a number of hash partitions under the file prefix to get around the S3 per prefix request rate limit.
+			keyShards = props.getPropertyInt("s3UploadKeyShards", keyShards);
+			keyManifestFile = getStateFile(KEY_MANIFEST_FILE_NAME);
+			loadKeyManifest();
+			// limit the number of uploads running at once and use the scheduler to pick which goes next.
+			maxConcurrentUploads = props.getPropertyInt("s3UploadMaxConcurrentUploads", maxConcurrentUploads);
+			priorityClass = UploadScheduler.PriorityClass.parse(props.getPropertyStr("s3UploadPriorityClass"), priorityClass);
+			uploadDeadline = props.getPropertyLong("s3UploadDeadline", uploadDeadline);
+			starvationTimeout = props.getPropertyLong("s3UploadStarvationTimeout", starvationTimeout);
+			if (maxConcurrentUploads > 0)
+				UploadScheduler.getInstance().setMaxConcurrentUploads(maxConcurrentUploads);
+			// times of day when uploads run at s3UploadWindowRate (unlimited if 0). Outside them they run at s3UploadOutsideWindowRate or pause if that is 0.
+			String uploadWindowsStr = props.getPropertyStr("s3UploadWindows");
+			windowRate = props.getPropertyLong("s3UploadWindowRate", windowRate);
+			outsideWindowRate = props.getPropertyLong("s3UploadOutsideWindowRate", outsideWindowRate);
+			if (!StringUtils.isEmpty(uploadWindowsStr))
+			{
+				try
+				{
+					uploadWindows = UploadWindows.parse(uploadWindowsStr);
+					windowOpen = uploadWindows.isOpen(System.currentTimeMillis());
+					rateLimiter.setRate(windowOpen ? windowRate : outsideWindowRate);
+					lastWindowCheck = System.currentTimeMillis();
+				}
+				catch (IllegalArgumentException e)
+				{
+					logger.warn(MODULE_NAME + ".onAppStart [" + appInstance.getContextStr() + "] ignoring s3UploadWindows: " + e.getMessage(), WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
+					uploadWindows = null;
+				}
+			}
+			multipartUploadThreshold = props.getPropertyLong("s3UploadMultipartUploadThreshold", multipartUploadThreshold);
+			minimumUploadPartSize = props.getPropertyLong("s3UploadMinimumUploadPartSize", minimumUploadPartSize);
+			if (minimumUploadPartSize > 0 && (minimumUploadPartSize < MIN_PART_SIZE || minimumUploadPartSize > MAX_PART_SIZE))
+			{
+				long partSize = Math.max(MIN_PART_SIZE, Math.min(minimumUploadPartSize, MAX_PART_SIZE));
+				logger.warn(MODULE_NAME + ".onAppStart [" + appInstance.getContextStr() + "] s3UploadMinimumUploadPartSize: " + minimumUploadPartSize + " is outside the S3 part size limits, using: " + partSize, WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
+				minimumUploadPartSize = partSize;
+			}
+			// gzip text files such as captions and manifests on the way up. Compression is done in memory so larger files are sent as is.
+			String compressSuffixes = props.getPropertyStr("s3UploadCompressSuffixes");
+			if (!StringUtils.isEmpty(compressSuffixes))
+			{
+				long maxSize = props.getPropertyLong("s3UploadCompressMaxSize", compressMaxSize);
+				// the whole compressed file is held in memory so there has to be a limit.
+				if (maxSize > 0)
+					compressMaxSize = maxSize;
+				else
+					logger.warn(MODULE_NAME + ".onAppStart [" + appInstance.getContextStr() + "] s3UploadCompressMaxSize: " + maxSize + " must be greater than 0, using: " + compressMaxSize, WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
+				contentPolicy = new ContentPolicy(compressSuffixes, compressMaxSize);
+			}
+			// keep uploaded originals and delete the least recently used when free space drops below s3UploadRetentionMinFreePercent, until it's back to s3UploadRetentionTargetFreePercent.
+			retentionMinFreePercent = props.getPropertyInt("s3UploadRetentionMinFreePercent", retentionMinFreePercent);
+			retentionTargetFreePercent = props.getPropertyInt("s3UploadRetentionTargetFreePercent", retentionMinFreePercent + 5);
+			// hold new uploads while others are running when free space is below this so the running ones finish and can be cleaned up sooner.
+			criticalFreePercent = props.getPropertyInt("s3UploadCriticalFreePercent", criticalFreePercent);
+			if (retentionMinFreePercent > 0)
+			{
+				if (deleteOriginalFiles)
+					logger.info(MODULE_NAME + ".onAppStart [" + appInstance.getContextStr() + "] s3UploadRetentionMinFreePercent is set, uploaded originals will be retained until space is needed instead of deleted straight away", WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
+				retentionManager = new RetentionManager(storageDir, getStateFile(RETENTION_INDEX_FILE_NAME));
+				try
+				{
+					retentionManager.load();
+				}
+				catch (IOException e)
+				{
+					logger.warn(MODULE_NAME + ".onAppStart [" + appInstance.getContextStr() + "] Cannot read retention index", e);
+				}
+			}
+			// publish upload lifecycle events to s3UploadEventSinks (file, webhook or IUploadEventSink class names).
+			initEventBus(props);
+			// pause, resume, cancel and reprioritise uploads at runtime through JMX.
+			jmxControl = props.getPropertyBoolean("s3UploadJMXControl", jmxControl);
+			if (jmxControl)
+				registerControl();
+			if (uploadWindows != null || retentionManager != null || criticalFreePercent > 0)
+			{
+				maintenanceTimer = new Timer("S3UploadMaintenanceTimer: [" + appInstance.getContextStr() + "]");
+				maintenanceTimer.schedule(new MaintenanceTask(), MAINTENANCE_INTERVAL, MAINTENANCE_INTERVAL);
+			}
+
+			logger.info(MODULE_NAME + ".onAppStart [" + appInstance.getContextStr() + "] Local Storage Dir: " + storageDirStr + ", S3 Bucket Name: " + bucketName + ", File Prefix: " + filePrefix + ", Resume Uploads: " + resumeUploads + ", Delete Original Files: " + deleteOriginalFiles
+					+ ", Version Files: " + versionFile + ", Upload Delay: " + uploadDelay + ", Key Shards: " + keyShards + ", Max Concurrent Uploads: " + maxConcurrentUploads + ", Priority Class: " + priorityClass + ", Deadline: " + uploadDeadline + ", Upload Windows: " + (uploadWindows != null ? uploadWindowsStr : "none") + ", Retention Min Free: " + retentionMinFreePercent + "%", WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
+
+			// build the S3 client and check the bucket in the background so that a slow or unreachable S3 doesn't hold up the application start.
+			appInstance.getVHost().getThreadPool().execute(new Runnable()
+			{
+
+				@Override
+				public void run()
+				{
+					initTransferManager();
+				}
+			});
+		}
+		catch (Exception e)
+		{
+			logger.error(MODULE_NAME + ".onAppStart [" + appInstance.getContextStr() + "] exception: " + e.getMessage(), e);
+			initFailed = true;
+		}
+		catch (Throwable t)
+		{
+			logger.error(MODULE_NAME + ".onAppStart [" + appInstance.getContextStr() + "] throwable exception: " + t.getMessage(), t);
+			initFailed = true;
+		}
+
+		appInstance.addMediaWriterListener(new WriteListener());
+	}
+
+	private void initTransferManager()
+	{
+		TransferManager tm = null;
+		AmazonS3 s3Client = null;
+		boolean retry = false;
+		try
+		{
 			AmazonS3ClientBuilder builder = AmazonS3ClientBuilder.standard();
+
+			// use the region that was resolved for this bucket last time if one hasn't been configured.
+			if (StringUtils.isEmpty(regionName) && cacheBucketRegion)
+			{
+				regionName = loadCachedBucketRegion();
+				if (debugLog && !StringUtils.isEmpty(regionName))
+					logger.info(MODULE_NAME + ".initTransferManager [" + appInstance.getContextStr() + "] using cached bucket region: " + regionName, WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
+			}
+
 			Regions region = null;
 			try
 			{
@@ -454,7 +782,13 @@ public class ModuleS3Upload extends ModuleBase
 			}
 			finally
 			{
-				if (region != null)
+				if (!StringUtils.isEmpty(serviceEndpoint))
+				{
+					builder.withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(serviceEndpoint, regionName));
+					builder.withPathStyleAccessEnabled(true);
+					logger.info(MODULE_NAME + ".initTransferManager [" + appInstance.getContextStr() + "] using service endpoint: " + serviceEndpoint, WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
+				}
+				else if (region != null)
 				{
 					builder.withRegion(region);
 					if (allowBucketRegionOverride)
@@ -468,12 +802,12 @@ public class ModuleS3Upload extends ModuleBase
 			// backwards compatibility
 			if (!StringUtils.isEmpty(accessKey) && !StringUtils.isEmpty(secretKey))
 			{
-				logger.info(MODULE_NAME + ".onAppStart: [" + appInstance.getContextStr() + "] using supplied aws credentials", WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
+				logger.info(MODULE_NAME + ".initTransferManager: [" + appInstance.getContextStr() + "] using supplied aws credentials", WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
 				credentialsProvider = new AWSStaticCredentialsProvider(new BasicAWSCredentials(accessKey, secretKey));
 			}
 			else if (!StringUtils.isEmpty(awsProfile))
 			{
-				logger.info(MODULE_NAME + ".onAppStart: [" + appInstance.getContextStr() + "] using aws profile: " + awsProfile, WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
+				logger.info(MODULE_NAME + ".initTransferManager: [" + appInstance.getContextStr() + "] using aws profile: " + awsProfile, WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
 				if (StringUtils.isEmpty(awsProfilePath))
 				{
 					credentialsProvider = new ProfileCredentialsProvider(awsProfile);
@@ -485,13 +819,16 @@ public class ModuleS3Upload extends ModuleBase
 			}
 			else
 			{
-				logger.info(MODULE_NAME + ".onAppStart: [" + appInstance.getContextStr() + "] using default aws credentials provider chain", WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
+				logger.info(MODULE_NAME + ".initTransferManager: [" + appInstance.getContextStr() + "] using default aws credentials provider chain", WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
 
 			}
 
 			if (credentialsProvider != null)
 				builder.withCredentials(credentialsProvider);
 
+			if (socketTimeout > 0)
+				builder.withClientConfiguration(new ClientConfiguration().withSocketTimeout(socketTimeout));
+
 			s3Client = builder.build();
 
 			if (checkBucket)
@@ -502,43 +839,196 @@ public class ModuleS3Upload extends ModuleBase
 				HeadBucketResult headBucketResult = s3Client.headBucket(new HeadBucketRequest(bucketName));
 				String bucketRegion = headBucketResult.getBucketRegion();
 				if (!bucketRegion.equalsIgnoreCase(regionName))
-					logger.warn(MODULE_NAME + ".onAppStart: [" + appInstance.getContextStr() + "] bucket region doesn't match configured region. (b:c)[" + bucketRegion + ":" + regionName + "]", WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
+					logger.warn(MODULE_NAME + ".initTransferManager: [" + appInstance.getContextStr() + "] bucket region doesn't match configured region. (b:c)[" + bucketRegion + ":" + regionName + "]", WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
+				if (cacheBucketRegion)
+					saveCachedBucketRegion(bucketRegion);
 			}
-			transferManager = TransferManagerBuilder.standard().withS3Client(s3Client).build();
-			logger.info(MODULE_NAME + ".onAppStart [" + appInstance.getContextStr() + "] Local Storage Dir: " + storageDirStr + ", S3 Bucket Name: " + bucketName + ", File Prefix: " + filePrefix + ", Resume Uploads: " + resumeUploads + ", Delete Original Files: " + deleteOriginalFiles
-					+ ", Version Files: " + versionFile + ", Upload Delay: " + uploadDelay, WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
-
-			appInstance.getVHost().getThreadPool().execute(new Runnable()
-			{
-
-				@Override
-				public void run()
-				{
-					resumeUploads();
-				}
-			});
+			TransferManagerBuilder transferManagerBuilder = TransferManagerBuilder.standard().withS3Client(s3Client);
+			if (multipartUploadThreshold > 0)
+				transferManagerBuilder.withMultipartUploadThreshold(multipartUploadThreshold);
+			if (minimumUploadPartSize > 0)
+				transferManagerBuilder.withMinimumUploadPartSize(minimumUploadPartSize);
+			tm = transferManagerBuilder.build();
+			logger.info(MODULE_NAME + ".initTransferManager [" + appInstance.getContextStr() + "] Multipart Upload Threshold: " + tm.getConfiguration().getMultipartUploadThreshold() + ", Minimum Upload Part Size: " + tm.getConfiguration().getMinimumUploadPartSize(), WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
 		}
 		catch (IllegalStateException ise)
 		{
-			logger.error(MODULE_NAME + ".onAppStart [" + appInstance.getContextStr() + "] Illegal State Exception thrown. The installed version of AWS SDK may not be compatible with this version of Wowza Streaming Engine. Please check and upgrade your version of AWS SDK.", ise);
+			logger.error(MODULE_NAME + ".initTransferManager [" + appInstance.getContextStr() + "] Illegal State Exception thrown. The installed version of AWS SDK may not be compatible with this version of Wowza Streaming Engine. Please check and upgrade your version of AWS SDK.", ise);
 		}
 		catch (AmazonServiceException ase)
 		{
 			int status = ase.getStatusCode();
 			String message = ase.getErrorMessage();
 
-			logger.warn(MODULE_NAME + ".onAppStart: [" + appInstance.getContextStr() + "] missing S3 bucket: " + bucketName + ", S3 returned status: " + status + ", message: " + message, WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
+			// a missing bucket (404) or no access to it (403) is a configuration problem that won't fix itself. Throttling and server errors are worth trying again.
+			retry = status >= 500 || status == 408 || status == 429;
+			if (retry)
+				logger.warn(MODULE_NAME + ".initTransferManager: [" + appInstance.getContextStr() + "] S3 unavailable checking bucket: " + bucketName + ", S3 returned status: " + status + ", message: " + message, WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
+			else
+				logger.warn(MODULE_NAME + ".initTransferManager: [" + appInstance.getContextStr() + "] missing S3 bucket: " + bucketName + ", S3 returned status: " + status + ", message: " + message, WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
+		}
+		catch (SdkClientException sce)
+		{
+			// S3 couldn't be reached or didn't respond in time.
+			retry = true;
+			logger.warn(MODULE_NAME + ".initTransferManager: [" + appInstance.getContextStr() + "] cannot reach S3: " + sce.getMessage(), WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
 		}
 		catch (Exception e)
 		{
-			logger.error(MODULE_NAME + ".onAppStart [" + appInstance.getContextStr() + "] exception: " + e.getMessage(), e);
+			logger.error(MODULE_NAME + ".initTransferManager [" + appInstance.getContextStr() + "] exception: " + e.getMessage(), e);
 		}
 		catch (Throwable t)
 		{
-			logger.error(MODULE_NAME + ".onAppStart [" + appInstance.getContextStr() + "] throwable exception: " + t.getMessage(), t);
+			logger.error(MODULE_NAME + ".initTransferManager [" + appInstance.getContextStr() + "] throwable exception: " + t.getMessage(), t);
 		}
 
-		appInstance.addMediaWriterListener(new WriteListener());
+		if (tm == null && s3Client != null)
+			s3Client.shutdown();
+
+		synchronized(lock)
+		{
+			if (tm == null && retry && !shuttingDown)
+			{
+				// keep queueing recordings until the client can be built.
+				long delay = initRetryDelay;
+				initRetryDelay = Math.min(initRetryDelay * 2, MAX_INIT_RETRY_DELAY);
+				logger.warn(MODULE_NAME + ".initTransferManager [" + appInstance.getContextStr() + "] S3 Transfer Manager isn't loaded, retrying in " + delay + "ms. Queued uploads: " + pendingUploads.size(), WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
+				if (initRetryTimer == null)
+					initRetryTimer = new Timer("S3UploadInitTimer: [" + appInstance.getContextStr() + "]");
+				initRetryTimer.schedule(new TimerTask()
+				{
+
+					@Override
+					public void run()
+					{
+						initTransferManager();
+					}
+				}, delay);
+				return;
+			}
+			if (initRetryTimer != null)
+			{
+				initRetryTimer.cancel();
+				initRetryTimer = null;
+			}
+			if (tm == null)
+			{
+				// recordings that were queued keep their .upload files so they will be picked up next time the application starts.
+				logger.warn(MODULE_NAME + ".initTransferManager [" + appInstance.getContextStr() + "] S3 Transfer Manager isn't loaded. Queued uploads: " + pendingUploads.size() + " will be resumed when the application restarts.", WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
+				initFailed = true;
+				pendingUploads.clear();
+				return;
+			}
+			if (shuttingDown)
+			{
+				tm.shutdownNow(false);
+				pendingUploads.clear();
+				return;
+			}
+			transferManager = tm;
+		}
+
+		resumeUploads();
+
+		synchronized(lock)
+		{
+			// anything that finished recording while the client was being built.
+			if (debugLog)
+				logger.info(MODULE_NAME + ".initTransferManager [" + appInstance.getContextStr() + "] starting queued uploads: " + pendingUploads.size(), WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
+			transferManagerReady = true;
+			Iterator<String> iter = pendingUploads.iterator();
+			while (iter.hasNext())
+			{
+				String mediaName = iter.next();
+				iter.remove();
+				if (!shuttingDown)
+					startUpload(mediaName, uploadDelay);
+			}
+		}
+	}
+
+	private String loadCachedBucketRegion()
+	{
+		if (regionCacheFile == null)
+			return null;
+		return loadProperties(regionCacheFile).getProperty(bucketName);
+	}
+
+	private void saveCachedBucketRegion(String bucketRegion)
+	{
+		if (regionCacheFile == null || StringUtils.isEmpty(bucketRegion))
+			return;
+
+		Properties regions = loadProperties(regionCacheFile);
+		if (bucketRegion.equals(regions.getProperty(bucketName)))
+			return;
+		regions.setProperty(bucketName, bucketRegion);
+		storeProperties(regionCacheFile, regions, MODULE_NAME + " bucket regions");
+	}
+
+	private File getStateFile(String baseName)
+	{
+		// applications share the storage dir by default so each instance keeps its own copy.
+		return new File(storageDir, baseName + "-" + appInstance.getContextStr().replaceAll("[^A-Za-z0-9._-]", "_"));
+	}
+
+	private Properties loadProperties(File file)
+	{
+		Properties properties = new Properties();
+		if (!file.exists())
+			return properties;
+
+		FileInputStream fis = null;
+		try
+		{
+			fis = new FileInputStream(file);
+			properties.load(fis);
+		}
+		catch (Exception e)
+		{
+			logger.warn(MODULE_NAME + ".loadProperties [" + appInstance.getContextStr() + "] Cannot read file: " + file.getPath(), e);
+		}
+		finally
+		{
+			if (fis != null)
+			{
+				try
+				{
+					fis.close();
+				}
+				catch (IOException e)
+				{
+				}
+			}
+		}
+		return properties;
+	}
+
+	private void storeProperties(File file, Properties properties, String comments)
+	{
+		FileOutputStream fos = null;
+		try
+		{
+			fos = new FileOutputStream(file);
+			properties.store(fos, comments);
+		}
+		catch (Exception e)
+		{
+			logger.warn(MODULE_NAME + ".storeProperties [" + appInstance.getContextStr() + "] Cannot write file: " + file.getPath(), e);
+		}
+		finally
+		{
+			if (fos != null)
+			{
+				try
+				{
+					fos.close();
+				}
+				catch (IOException e)
+				{
+				}
+			}
+		}
 	}
 
 	public void onAppStop(IApplicationInstance appInstance)
@@ -547,6 +1037,13 @@ public class ModuleS3Upload extends ModuleBase
 		synchronized(lock)
 		{
 			shuttingDown = true;
+			if (maintenanceTimer != null)
+				maintenanceTimer.cancel();
+			if (initRetryTimer != null)
+			{
+				initRetryTimer.cancel();
+				initRetryTimer = null;
+			}
 			Iterator<String> iter = uploadTimers.keySet().iterator();
 			while (iter.hasNext())
 			{
@@ -558,7 +1055,15 @@ public class ModuleS3Upload extends ModuleBase
 					logger.info(MODULE_NAME + ".onAppStop  stopping pending upload [" + appInstance.getContextStr() + "/" + mediaName + "]", WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
 				iter.remove();
 			}
+			// queued uploads keep their .upload files and will be resumed next time.
+			pendingUploads.clear();
 		}
+		UploadScheduler.getInstance().removeAll(this);
+		unregisterControl();
+		UploadEventBus bus = eventBus;
+		eventBus = null;
+		if (bus != null)
+			bus.close();
 
 		try
 		{
@@ -573,27 +1078,612 @@ public class ModuleS3Upload extends ModuleBase
 		}
 	}
 
-	private void resumeUploads()
+	private void writeUploadFile(String mediaName, PersistableTransfer transfer)
 	{
-		if (debugLog)
-			logger.info(MODULE_NAME + ".resumeUploads " + (resumeUploads ? "resuming" : "aborting") + " unfinished Uploads [" + appInstance.getContextStr() + "]", WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
-
-		if (transferManager != null && !resumeUploads)
+		synchronized(lock)
 		{
-			transferManager.abortMultipartUploads(bucketName, new Date());
-		}
+			FileOutputStream fos = null;
+			File uploadFile = new File(storageDir, mediaName + ".upload");
+			// the upload has completed or been cancelled since this was saved.
+			if (!uploadFile.exists())
+				return;
+			// write to a temp file and move it into place so a crash part way through can't leave a torn checkpoint.
+			File tmp = new File(storageDir, mediaName + ".upload.tmp");
+			boolean written = false;
+			try
+			{
+				fos = new FileOutputStream(tmp);
+				transfer.serialize(fos);
+				fos.getFD().sync();
+				written = true;
+			}
+			catch (Exception e)
+			{
+				logger.warn(MODULE_NAME + ".writeUploadFile [" + appInstance.getContextStr() + "/" + mediaName + "] cannot write upload checkpoint: " + e.getMessage(), WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
+			}
+			finally
+			{
+				if (fos != null)
+				{
+					try
+					{
+						fos.close();
+					}
+					catch (Exception e)
+					{
+					}
+				}
+			}
+			try
+			{
+				if (written)
+					Files.move(tmp.toPath(), uploadFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}
+			catch (IOException e)
+			{
+				logger.warn(MODULE_NAME + ".writeUploadFile [" + appInstance.getContextStr() + "/" + mediaName + "] cannot replace upload checkpoint: " + e.getMessage(), WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
+			}
+			finally
+			{
+				tmp.delete();
+			}
+		}
+	}
+
+	private void publishEvent(UploadEvent.Type type, String mediaName, String key, long bytesTransferred, long totalBytes, String eTag, String message)
+	{
+		UploadEventBus bus = eventBus;
+		if (bus != null)
+			bus.publish(new UploadEvent(type, appInstance.getContextStr(), mediaName, bucketName, key, bytesTransferred, totalBytes, eTag, message));
+	}
+
+	private void initEventBus(WMSProperties props)
+	{
+		String sinkNames = props.getPropertyStr("s3UploadEventSinks");
+		if (StringUtils.isEmpty(sinkNames))
+			return;
+
+		List<IUploadEventSink> sinks = new ArrayList<IUploadEventSink>();
+		for (String sinkName : sinkNames.split(","))
+		{
+			sinkName = sinkName.trim();
+			if (sinkName.length() == 0)
+				continue;
+			try
+			{
+				IUploadEventSink sink = null;
+				if (sinkName.equalsIgnoreCase("file"))
+					sink = new FileEventSink();
+				else if (sinkName.equalsIgnoreCase("webhook"))
+					sink = new WebhookEventSink();
+				else
+					sink = (IUploadEventSink)Class.forName(sinkName).getDeclaredConstructor().newInstance();
+				sink.init(appInstance, props);
+				sinks.add(sink);
+			}
+			catch (Exception e)
+			{
+				logger.error(MODULE_NAME + ".initEventBus [" + appInstance.getContextStr() + "] Cannot create event sink: " + sinkName, e);
+			}
+		}
+		if (sinks.isEmpty())
+			return;
+
+		eventProgressStep = props.getPropertyInt("s3UploadEventProgressStep", eventProgressStep);
+		long batchInterval = props.getPropertyLong("s3UploadEventBatchInterval", 1000l);
+		if (batchInterval < 1)
+		{
+			logger.warn(MODULE_NAME + ".initEventBus [" + appInstance.getContextStr() + "] s3UploadEventBatchInterval: " + batchInterval + " must be at least 1, using: 1", WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
+			batchInterval = 1;
+		}
+		UploadEventBus bus = new UploadEventBus(logger, appInstance.getContextStr(), sinks, props.getPropertyInt("s3UploadEventQueueSize", 10000), props.getPropertyInt("s3UploadEventBatchSize", 100), batchInterval);
+		bus.start();
+		eventBus = bus;
+	}
+
+	private boolean holdUpload(String mediaName)
+	{
+		synchronized(lock)
+		{
+			String reason = null;
+			if (adminPausedAll || adminPaused.contains(mediaName))
+				reason = "paused";
+			else if (uploadWindows != null && !windowOpen && outsideWindowRate <= 0)
+				reason = "outside upload window";
+			else if (criticalFreePercent > 0 && !activeUploads.isEmpty() && !activeUploads.containsKey(mediaName) && RetentionManager.getFreePercent(storageDir) < criticalFreePercent)
+				reason = "disk space critical";
+			if (reason == null)
+				return false;
+			if (!heldUploads.contains(mediaName))
+			{
+				if (debugLog)
+					logger.info(MODULE_NAME + ".holdUpload " + reason + ", holding upload [" + appInstance.getContextStr() + "/" + mediaName + "]", WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
+				heldUploads.add(mediaName);
+			}
+			return true;
+		}
+	}
+
+	private void releaseHeldUploads()
+	{
+		List<String> toResume = null;
+		synchronized(lock)
+		{
+			if (shuttingDown || heldUploads.isEmpty())
+				return;
+			toResume = new ArrayList<String>(heldUploads);
+			heldUploads.clear();
+		}
+		// anything that still can't go is held again.
+		for (String mediaName : toResume)
+		{
+			startUpload(mediaName);
+		}
+	}
+
+	private void checkDiskSpace()
+	{
+		double freePercent = RetentionManager.getFreePercent(storageDir);
+		if (retentionManager != null && freePercent < retentionMinFreePercent)
+		{
+			try
+			{
+				List<String> evicted = retentionManager.evict(retentionTargetFreePercent);
+				freePercent = RetentionManager.getFreePercent(storageDir);
+				logger.info(MODULE_NAME + ".checkDiskSpace [" + appInstance.getContextStr() + "] deleted " + evicted.size() + " uploaded files, free space: " + (int)freePercent + "%, retained files: " + retentionManager.size(), WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
+				if (debugLog && !evicted.isEmpty())
+					logger.info(MODULE_NAME + ".checkDiskSpace [" + appInstance.getContextStr() + "] deleted: " + evicted, WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
+				if (freePercent < retentionMinFreePercent)
+					logger.warn(MODULE_NAME + ".checkDiskSpace [" + appInstance.getContextStr() + "] free space: " + (int)freePercent + "% still below s3UploadRetentionMinFreePercent: " + retentionMinFreePercent + "%, nothing left that is safe to delete", WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
+			}
+			catch (IOException e)
+			{
+				logger.warn(MODULE_NAME + ".checkDiskSpace [" + appInstance.getContextStr() + "] Cannot update retention index", e);
+			}
+		}
+		if (criticalFreePercent > 0)
+			releaseHeldUploads();
+	}
+
+	private void checkUploadWindow()
+	{
+		long now = System.currentTimeMillis();
+		boolean open = uploadWindows.isOpen(now);
+		Map<String, Upload> toPause = new HashMap<String, Upload>();
+		boolean changed = false;
+
+		synchronized(lock)
+		{
+			if (shuttingDown)
+				return;
+
+			// measure how fast uploads go inside the window for the backlog estimate.
+			long bytes = bytesTransferred.getAndSet(0);
+			long elapsed = now - lastWindowCheck;
+			lastWindowCheck = now;
+			if (windowOpen && !activeUploads.isEmpty() && elapsed > 0 && bytes > 0)
+				windowThroughput = windowThroughput <= 0 ? (double)bytes / elapsed : (0.3 * bytes / elapsed) + (0.7 * windowThroughput);
+
+			if (open != windowOpen)
+			{
+				changed = true;
+				windowOpen = open;
+				rateLimiter.setRate(open ? windowRate : outsideWindowRate);
+				if (!open && outsideWindowRate <= 0)
+				{
+					toPause.putAll(activeUploads);
+				}
+			}
+		}
+
+		if (!changed)
+			return;
+
+		logger.info(MODULE_NAME + ".checkUploadWindow [" + appInstance.getContextStr() + "] upload window " + (open ? "opened" : "closed") + ", rate: " + (open ? windowRate : outsideWindowRate) + " bytes/s, pausing: " + toPause.size(), WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
+
+		for (Map.Entry<String, Upload> entry : toPause.entrySet())
+		{
+			pauseActiveUpload(entry.getKey(), entry.getValue());
+		}
+
+		if (open)
+			releaseHeldUploads();
+
+		estimateBacklogDrain(now);
+	}
+
+	private boolean pauseActiveUpload(String mediaName, Upload upload)
+	{
+		try
+		{
+			// in flight parts are abandoned and sent again when the upload resumes. Completed parts are kept.
+			PauseResult<PersistableUpload> result = upload.tryPause(false);
+			if (result.getPauseStatus().isPaused())
+			{
+				writeUploadFile(mediaName, result.getInfoToResume());
+				holdUpload(mediaName);
+				if (debugLog)
+					logger.info(MODULE_NAME + ".pauseActiveUpload paused upload [" + appInstance.getContextStr() + "/" + mediaName + "]", WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
+				return true;
+			}
+			if (debugLog)
+				logger.info(MODULE_NAME + ".pauseActiveUpload upload can't be paused, letting it finish [" + appInstance.getContextStr() + "/" + mediaName + "] status: " + result.getPauseStatus(), WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
+		}
+		catch (Exception e)
+		{
+			logger.warn(MODULE_NAME + ".pauseActiveUpload error pausing upload [" + appInstance.getContextStr() + "/" + mediaName + "]", e);
+		}
+		return false;
+	}
+
+	List<String> getUploadStatus()
+	{
+		List<String> status = new ArrayList<String>();
+		List<UploadScheduler.Job> scheduled = UploadScheduler.getInstance().getQueued(this);
+		synchronized(lock)
+		{
+			for (Map.Entry<String, Upload> entry : activeUploads.entrySet())
+			{
+				Upload upload = entry.getValue();
+				status.add(entry.getKey() + " state: in-flight, progress: " + String.format("%.1f", upload.getProgress().getPercentTransferred()) + "%, bytes: " + upload.getProgress().getBytesTransferred() + "/" + upload.getProgress().getTotalBytesToTransfer());
+			}
+			for (UploadScheduler.Job job : scheduled)
+			{
+				status.add(job.mediaName + " state: scheduled, priority: " + job.priorityClass.name().toLowerCase() + ", size: " + job.size + (job.hasDeadline() ? ", deadline: " + new Date(job.deadline) : ""));
+			}
+			for (String mediaName : heldUploads)
+			{
+				status.add(mediaName + " state: " + (adminPausedAll || adminPaused.contains(mediaName) ? "paused" : "held"));
+			}
+			for (String mediaName : uploadTimers.keySet())
+			{
+				status.add(mediaName + " state: delayed");
+			}
+			for (String mediaName : pendingUploads)
+			{
+				status.add(mediaName + " state: waiting for S3 client");
+			}
+		}
+		return status;
+	}
+
+	boolean pauseUpload(String mediaName)
+	{
+		Upload upload = null;
+		synchronized(lock)
+		{
+			upload = activeUploads.get(mediaName);
+			// scheduled and interrupted uploads all have a .upload file.
+			if (upload == null && !heldUploads.contains(mediaName) && !pendingUploads.contains(mediaName) && !uploadTimers.containsKey(mediaName) && !new File(storageDir, mediaName + ".upload").exists())
+				return false;
+			if (!adminPaused.contains(mediaName))
+				adminPaused.add(mediaName);
+		}
+		logger.info(MODULE_NAME + ".pauseUpload [" + appInstance.getContextStr() + "/" + mediaName + "]", WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
+		if (upload != null && !pauseActiveUpload(mediaName, upload))
+		{
+			// it's going to run to the end so don't hold a later recording with the same name.
+			synchronized(lock)
+			{
+				adminPaused.remove(mediaName);
+			}
+			return false;
+		}
+		return true;
+	}
+
+	boolean resumeUpload(String mediaName)
+	{
+		boolean held = false;
+		synchronized(lock)
+		{
+			adminPaused.remove(mediaName);
+			held = heldUploads.remove(mediaName);
+		}
+		logger.info(MODULE_NAME + ".resumeUpload [" + appInstance.getContextStr() + "/" + mediaName + "]", WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
+		// goes back on hold if it is outside the upload window etc.
+		if (held)
+			startUpload(mediaName);
+		return held;
+	}
+
+	int pauseAllUploads()
+	{
+		Map<String, Upload> toPause = null;
+		synchronized(lock)
+		{
+			adminPausedAll = true;
+			toPause = new HashMap<String, Upload>(activeUploads);
+		}
+		logger.info(MODULE_NAME + ".pauseAllUploads [" + appInstance.getContextStr() + "] pausing: " + toPause.size(), WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
+		int paused = 0;
+		for (Map.Entry<String, Upload> entry : toPause.entrySet())
+		{
+			if (pauseActiveUpload(entry.getKey(), entry.getValue()))
+				paused++;
+		}
+		return paused;
+	}
+
+	int resumeAllUploads()
+	{
+		int held = 0;
+		synchronized(lock)
+		{
+			adminPausedAll = false;
+			adminPaused.clear();
+			held = heldUploads.size();
+		}
+		logger.info(MODULE_NAME + ".resumeAllUploads [" + appInstance.getContextStr() + "] resuming: " + held, WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
+		releaseHeldUploads();
+		return held;
+	}
+
+	boolean cancelUpload(String mediaName)
+	{
+		Upload upload = null;
+		PersistableUpload persistableUpload = null;
+		boolean found = false;
+		synchronized(lock)
+		{
+			upload = activeUploads.get(mediaName);
+			found = upload != null;
+			found |= heldUploads.remove(mediaName);
+			found |= pendingUploads.remove(mediaName);
+			adminPaused.remove(mediaName);
+			Timer t = uploadTimers.remove(mediaName);
+			if (t != null)
+			{
+				t.cancel();
+				found = true;
+			}
+
+			File uploadFile = new File(storageDir, mediaName + ".upload");
+			if (uploadFile.exists())
+			{
+				found = true;
+				// a paused or interrupted multipart upload has to be aborted from its saved state.
+				if (upload == null && uploadFile.length() > 0)
+					persistableUpload = readUploadFile(uploadFile);
+				// without the .upload file it won't be restarted.
+				uploadFile.delete();
+			}
+			if (keyManifest.remove(mediaName) != null)
+				storeProperties(keyManifestFile, keyManifest, MODULE_NAME + " upload keys");
+		}
+		found |= UploadScheduler.getInstance().cancel(this, mediaName);
+		if (!found)
+			return false;
+
+		logger.info(MODULE_NAME + ".cancelUpload [" + appInstance.getContextStr() + "/" + mediaName + "]", WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
+		try
+		{
+			if (upload != null)
+			{
+				// aborts the multipart upload as well.
+				upload.abort();
+			}
+			else if (persistableUpload != null && transferManager != null)
+			{
+				JSON json = new JSON(persistableUpload.serialize());
+				transferManager.getAmazonS3Client().abortMultipartUpload(new AbortMultipartUploadRequest(json.getString("bucketName"), json.getString("key"), json.getString("multipartUploadId")));
+			}
+		}
+		catch (Exception e)
+		{
+			logger.warn(MODULE_NAME + ".cancelUpload [" + appInstance.getContextStr() + "/" + mediaName + "] error aborting upload", e);
+		}
+		publishEvent(UploadEvent.Type.FAILED, mediaName, null, -1, -1, null, "cancelled");
+		return true;
+	}
+
+	boolean setUploadPriorityClass(String mediaName, UploadScheduler.PriorityClass priorityClass)
+	{
+		logger.info(MODULE_NAME + ".setUploadPriorityClass [" + appInstance.getContextStr() + "/" + mediaName + "] priority: " + priorityClass, WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
+		return UploadScheduler.getInstance().setPriorityClass(this, mediaName, priorityClass);
+	}
+
+	int rescanUploads()
+	{
+		int started = 0;
+		List<String> scheduled = new ArrayList<String>();
+		for (UploadScheduler.Job job : UploadScheduler.getInstance().getQueued(this))
+		{
+			scheduled.add(job.mediaName);
+		}
+		for (File uploadFile : getMatchingFiles(storageDir, ".upload"))
+		{
+			String mediaName = getMediaName(uploadFile.getPath());
+			synchronized(lock)
+			{
+				if (shuttingDown || !transferManagerReady)
+					break;
+				if (activeUploads.containsKey(mediaName) || heldUploads.contains(mediaName) || pendingUploads.contains(mediaName) || uploadTimers.containsKey(mediaName) || scheduled.contains(mediaName))
+					continue;
+			}
+			if (debugLog)
+				logger.info(MODULE_NAME + ".rescanUploads found upload [" + appInstance.getContextStr() + "/" + mediaName + "]", WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
+			publishEvent(UploadEvent.Type.QUEUED, mediaName, null, -1, new File(storageDir, mediaName).length(), null, "rescan");
+			startUpload(mediaName, uploadDelay);
+			started++;
+		}
+		logger.info(MODULE_NAME + ".rescanUploads [" + appInstance.getContextStr() + "] uploads found: " + started, WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
+		return started;
+	}
+
+	UploadScheduler.PriorityClass getPriorityClass()
+	{
+		return priorityClass;
+	}
+
+	void setPriorityClass(UploadScheduler.PriorityClass priorityClass)
+	{
+		logger.info(MODULE_NAME + ".setPriorityClass [" + appInstance.getContextStr() + "] priority: " + priorityClass, WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
+		this.priorityClass = priorityClass;
+	}
+
+	long getWindowRate()
+	{
+		return windowRate;
+	}
+
+	void setWindowRate(long windowRate)
+	{
+		logger.info(MODULE_NAME + ".setWindowRate [" + appInstance.getContextStr() + "] rate: " + windowRate, WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
+		synchronized(lock)
+		{
+			this.windowRate = windowRate;
+			if (windowOpen)
+				rateLimiter.setRate(windowRate);
+		}
+	}
+
+	long getOutsideWindowRate()
+	{
+		return outsideWindowRate;
+	}
+
+	void setOutsideWindowRate(long outsideWindowRate)
+	{
+		logger.info(MODULE_NAME + ".setOutsideWindowRate [" + appInstance.getContextStr() + "] rate: " + outsideWindowRate, WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
+		boolean release = false;
+		synchronized(lock)
+		{
+			this.outsideWindowRate = outsideWindowRate;
+			if (!windowOpen)
+				rateLimiter.setRate(outsideWindowRate);
+			release = outsideWindowRate > 0;
+		}
+		// uploads held outside the window can run at the new rate.
+		if (release)
+			releaseHeldUploads();
+	}
+
+	void setMaxConcurrentUploads(int maxConcurrentUploads)
+	{
+		// the scheduler holds uploads that are waiting so it can't be switched off once it's on.
+		if (maxConcurrentUploads <= 0 || UploadScheduler.getInstance().getMaxConcurrentUploads() <= 0)
+			throw new IllegalArgumentException("s3UploadMaxConcurrentUploads must be set in the application properties of at least one application and greater than 0");
+		logger.info(MODULE_NAME + ".setMaxConcurrentUploads [" + appInstance.getContextStr() + "] max: " + maxConcurrentUploads, WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
+		this.maxConcurrentUploads = maxConcurrentUploads;
+		UploadScheduler.getInstance().resetMaxConcurrentUploads(maxConcurrentUploads);
+	}
+
+	private PersistableUpload readUploadFile(File uploadFile)
+	{
+		FileInputStream fis = null;
+		try
+		{
+			fis = new FileInputStream(uploadFile);
+			return PersistableTransfer.deserializeFrom(fis);
+		}
+		catch (Exception e)
+		{
+			logger.warn(MODULE_NAME + ".readUploadFile [" + appInstance.getContextStr() + "] Cannot read upload file: " + uploadFile.getPath(), e);
+			return null;
+		}
+		finally
+		{
+			if (fis != null)
+			{
+				try
+				{
+					fis.close();
+				}
+				catch (IOException e)
+				{
+				}
+			}
+		}
+	}
+
+	private void registerControl()
+	{
+		try
+		{
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(CONTROL_DOMAIN + ":type=" + MODULE_NAME + ",context=" + ObjectName.quote(appInstance.getContextStr()));
+			if (server.isRegistered(name))
+				server.unregisterMBean(name);
+			server.registerMBean(new ModuleS3UploadControl(this), name);
+			controlName = name;
+		}
+		catch (Exception e)
+		{
+			logger.warn(MODULE_NAME + ".registerControl [" + appInstance.getContextStr() + "] Cannot register JMX control", e);
+		}
+	}
+
+	private void unregisterControl()
+	{
+		if (controlName == null)
+			return;
+		try
+		{
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(controlName);
+		}
+		catch (Exception e)
+		{
+			logger.warn(MODULE_NAME + ".unregisterControl [" + appInstance.getContextStr() + "] Cannot unregister JMX control", e);
+		}
+		controlName = null;
+	}
+
+	private void estimateBacklogDrain(long now)
+	{
+		long backlog = 0;
+		for (File uploadFile : getMatchingFiles(storageDir, ".upload"))
+		{
+			File mediaFile = new File(storageDir, getMediaName(uploadFile.getPath()));
+			backlog += mediaFile.length();
+		}
+		double throughput;
+		synchronized(lock)
+		{
+			throughput = windowThroughput;
+		}
+		long windowDuration = uploadWindows.getNextOpenDuration(now);
+		if (throughput <= 0)
+		{
+			logger.info(MODULE_NAME + ".estimateBacklogDrain [" + appInstance.getContextStr() + "] backlog: " + backlog + " bytes, window: " + windowDuration + "ms, throughput not measured yet", WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
+			return;
+		}
+		long drainTime = (long)(backlog / throughput);
+		String message = MODULE_NAME + ".estimateBacklogDrain [" + appInstance.getContextStr() + "] backlog: " + backlog + " bytes, throughput: " + (long)(throughput * 1000) + " bytes/s, estimated drain time: " + drainTime + "ms, window: " + windowDuration + "ms";
+		if (drainTime <= windowDuration)
+			logger.info(message, WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
+		else
+			logger.warn(message + ", backlog won't drain in the window", WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
+	}
+
+	private void resumeUploads()
+	{
+		if (debugLog)
+			logger.info(MODULE_NAME + ".resumeUploads " + (resumeUploads ? "resuming" : "aborting") + " unfinished Uploads [" + appInstance.getContextStr() + "]", WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
+
+		if (transferManager != null && !resumeUploads)
+		{
+			transferManager.abortMultipartUploads(bucketName, new Date());
+		}
 
 		List<File> uploadFiles = getMatchingFiles(storageDir, ".upload");
 
 		for (File uploadFile : uploadFiles)
 		{
+			String mediaName = getMediaName(uploadFile.getPath());
+			synchronized(lock)
+			{
+				// recordings that finished while the client was starting are handled from the queue.
+				if (pendingUploads.contains(mediaName))
+					continue;
+			}
 			if (!resumeUploads)
 			{
 				uploadFile.delete();
 			}
 			else
 			{
-				String mediaName = getMediaName(uploadFile.getPath());
+				publishEvent(UploadEvent.Type.QUEUED, mediaName, null, -1, new File(storageDir, mediaName).length(), null, "resumed");
 				startUpload(mediaName, uploadDelay);
 			}
 		}
@@ -626,21 +1716,99 @@ public class ModuleS3Upload extends ModuleBase
 	}
 
 	private void startUpload(String mediaName)
+	{
+		if (holdUpload(mediaName))
+			return;
+
+		// once any application has limited the concurrent uploads, every application's uploads go through the scheduler so they share the same slots.
+		if (maxConcurrentUploads > 0 || UploadScheduler.getInstance().getMaxConcurrentUploads() > 0)
+		{
+			// let the scheduler decide when this upload runs.
+			File mediaFile = new File(storageDir, mediaName);
+			long deadline = uploadDeadline > 0 ? mediaFile.lastModified() + uploadDeadline : Long.MAX_VALUE;
+			if (debugLog)
+				logger.info(MODULE_NAME + ".startUpload (scheduled) for [" + appInstance.getContextStr() + "/" + mediaName + "] priority: " + priorityClass + ", deadline: " + (deadline == Long.MAX_VALUE ? "none" : new Date(deadline).toString()), WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
+			UploadScheduler.getInstance().submit(new UploadScheduler.Job(this, mediaName, mediaFile.length(), mediaFile.lastModified(), priorityClass, deadline, starvationTimeout));
+			return;
+		}
+		doStartUpload(mediaName);
+	}
+
+	void dispatchUpload(final UploadScheduler.Job job)
+	{
+		appInstance.getVHost().getThreadPool().execute(new Runnable()
+		{
+
+			@Override
+			public void run()
+			{
+				boolean started = false;
+				try
+				{
+					synchronized(lock)
+					{
+						if (shuttingDown)
+							return;
+					}
+					// window may have closed while this was queued.
+					if (holdUpload(job.mediaName))
+						return;
+					if (debugLog)
+						logger.info(MODULE_NAME + ".dispatchUpload starting scheduled upload [" + appInstance.getContextStr() + "/" + job.mediaName + "] priority: " + job.priorityClass + ", size: " + job.size, WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
+					started = doStartUpload(job.mediaName);
+				}
+				finally
+				{
+					// give the slot back if nothing was started.
+					if (!started)
+						UploadScheduler.getInstance().finished(ModuleS3Upload.this, job.mediaName, false);
+				}
+			}
+		});
+	}
+
+	private boolean doStartUpload(String mediaName)
 	{
 		touchAppInstance();
 
 		File uploadFile = new File(storageDir, mediaName + ".upload");
 		if (uploadFile == null || !uploadFile.exists())
-			return;
+			return false;
 
 		if (transferManager != null)
 		{
 			Upload upload = null;
-			FileInputStream fis = null;
 			String uploadName = null;
+			boolean reserved = false;
 			try
 			{
-				if (uploadFile.length() == 0)
+				PersistableUpload persistableUpload = null;
+				if (uploadFile.length() > 0)
+				{
+					persistableUpload = readUploadFile(uploadFile);
+					if (persistableUpload == null)
+					{
+						// a checkpoint torn by a crash or a full disk would otherwise fail every retry. Start again from the beginning instead.
+						logger.warn(MODULE_NAME + ".startUpload upload checkpoint is unreadable, restarting upload from the beginning [" + appInstance.getContextStr() + "/" + mediaName + "]", WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
+						// the multipart upload it belonged to would push the restarted upload onto the next version.
+						abortOrphanedUploads(mediaName);
+						resetUploadFile(mediaName, uploadFile);
+					}
+					else if (!multipartUploadExists(persistableUpload))
+					{
+						// aborted by a bucket lifecycle rule while the upload was paused or the server was down. Resuming would fail every time.
+						logger.warn(MODULE_NAME + ".startUpload multipart upload no longer exists on S3, restarting upload from the beginning [" + appInstance.getContextStr() + "/" + mediaName + "]", WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
+						resetUploadFile(mediaName, uploadFile);
+						persistableUpload = null;
+					}
+				}
+				else if (getManifestKey(mediaName) != null && new File(storageDir, mediaName).length() >= transferManager.getConfiguration().getMultipartUploadThreshold())
+				{
+					// a stop or crash between starting a multipart upload and saving its checkpoint leaves the upload on S3 with nothing pointing at it.
+					// the key is saved just before an upload starts so a recording that hasn't been started yet has nothing to look for.
+					abortOrphanedUploads(mediaName);
+				}
+				if (persistableUpload == null)
 				{
 					if (debugLog)
 						logger.info(MODULE_NAME + ".startUpload new or single part upload for [" + appInstance.getContextStr() + "/" + mediaName + "]", WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
@@ -649,29 +1817,23 @@ public class ModuleS3Upload extends ModuleBase
 
 					if (mediaFile.exists())
 					{
-						uploadName = mediaName;
-						if (!StringUtils.isEmpty(filePrefix))
+						synchronized(lock)
 						{
-							uploadName = filePrefix + (filePrefix.endsWith("/") ? "" : "/") + uploadName;
+							// choose the key and reserve it in one go. Scheduled uploads start in parallel and two recorder versions of the same name could otherwise both pick the same S3 version.
+							uploadName = getUploadName(mediaName);
+							currentUploads.add(uploadName);
+							reserved = true;
 						}
-						if (versionFile)
+						if (contentPolicy != null && contentPolicy.shouldCompress(mediaFile))
 						{
-							uploadName = getMediaNameVersion(uploadName);
+							// compression reads the whole file into memory. Do it on the thread pool so the recorder and anything waiting on the lock aren't held up. The task now owns the key reservation.
+							startCompressedUpload(mediaName, uploadName, mediaFile);
+							reserved = false;
+							return true;
 						}
 						// In order to support setting ACL permissions for the file upload, we will wrap the upload properties in a PutObjectRequest
 						PutObjectRequest putObjectRequest = new PutObjectRequest(bucketName, uploadName, mediaFile);
-
-						// if the user has specified ACL properties, setup the putObjectRequest with the acl permissions generated
-						if (acl != null)
-						{
-							putObjectRequest.withAccessControlList(acl);
-						}
-						// else add cannedACL if one is set
-						else if (cannedAcl != null)
-						{
-							putObjectRequest.withCannedAcl(cannedAcl);
-						}
-
+						setAcl(putObjectRequest);
 						upload = transferManager.upload(putObjectRequest);
 					}
 					else
@@ -684,17 +1846,14 @@ public class ModuleS3Upload extends ModuleBase
 				{
 					if (debugLog)
 						logger.info(MODULE_NAME + ".startUpload resuming multipart upload for [" + appInstance.getContextStr() + "/" + mediaName + "]", WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
-					fis = new FileInputStream(uploadFile);
-					// Deserialize PersistableUpload information from disk.
-					PersistableUpload persistableUpload = PersistableTransfer.deserializeFrom(fis);
 					upload = transferManager.resumeUpload(persistableUpload);
 					JSON json = new JSON(persistableUpload.serialize());
 					uploadName = json.getString("key");
 				}
 				if (upload != null)
 				{
-					currentUploads.add(uploadName);
-					upload.addProgressListener(new ProgressListener(mediaName, uploadName));
+					uploadStarted(mediaName, uploadName, upload, reserved);
+					return true;
 				}
 			}
 			catch (Exception e)
@@ -703,11 +1862,42 @@ public class ModuleS3Upload extends ModuleBase
 			}
 			finally
 			{
-				if (fis != null)
+				if (reserved && upload == null)
+				{
+					synchronized(lock)
+					{
+						currentUploads.remove(uploadName);
+					}
+				}
+			}
+		}
+		else
+		{
+			logger.warn(MODULE_NAME + ".startUpload problem starting or resuming upload: [" + appInstance.getContextStr() + "/" + uploadFile.getName() + "] Amazon S3 TransferManager not running.");
+		}
+		return false;
+	}
+
+	private void resetUploadFile(String mediaName, File uploadFile)
+	{
+		synchronized(lock)
+		{
+			FileOutputStream fos = null;
+			try
+			{
+				fos = new FileOutputStream(uploadFile);
+			}
+			catch (IOException e)
+			{
+				logger.warn(MODULE_NAME + ".resetUploadFile [" + appInstance.getContextStr() + "/" + mediaName + "] cannot reset upload file: " + uploadFile.getPath(), e);
+			}
+			finally
+			{
+				if (fos != null)
 				{
 					try
 					{
-						fis.close();
+						fos.close();
 					}
 					catch (IOException e)
 					{
@@ -715,9 +1905,270 @@ public class ModuleS3Upload extends ModuleBase
 				}
 			}
 		}
-		else
+	}
+
+	private boolean multipartUploadExists(PersistableUpload persistableUpload)
+	{
+		JSON json = new JSON(persistableUpload.serialize());
+		try
 		{
-			logger.warn(MODULE_NAME + ".startUpload problem starting or resuming upload: [" + appInstance.getContextStr() + "/" + uploadFile.getName() + "] Amazon S3 TransferManager not running.");
+			transferManager.getAmazonS3Client().listParts(new ListPartsRequest(json.getString("bucketName"), json.getString("key"), json.getString("multipartUploadId")).withMaxParts(1));
+		}
+		catch (AmazonS3Exception e)
+		{
+			if ("NoSuchUpload".equals(e.getErrorCode()))
+				return false;
+			// anything else is left to the resume to retry.
+		}
+		catch (Exception e)
+		{
+		}
+		return true;
+	}
+
+	private void abortOrphanedUploads(String mediaName)
+	{
+		// only the key saved for this recording, and only multipart uploads started since its .upload file was created, so uploads from other servers are left alone.
+		String key = getManifestKey(mediaName);
+		long created = getManifestCreated(mediaName);
+		if (key == null || created < 0)
+			return;
+
+		try
+		{
+			AmazonS3 s3 = transferManager.getAmazonS3Client();
+			ListMultipartUploadsRequest request = new ListMultipartUploadsRequest(bucketName).withPrefix(key);
+			while (true)
+			{
+				MultipartUploadListing listing = s3.listMultipartUploads(request);
+				for (MultipartUpload multipartUpload : listing.getMultipartUploads())
+				{
+					if (!multipartUpload.getKey().equals(key))
+						continue;
+					if (multipartUpload.getInitiated() != null && multipartUpload.getInitiated().getTime() < created - MAX_CLOCK_SKEW)
+						continue;
+					logger.info(MODULE_NAME + ".abortOrphanedUploads aborting multipart upload [" + appInstance.getContextStr() + "/" + mediaName + "] key: " + key + ", uploadId: " + multipartUpload.getUploadId(), WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
+					s3.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, key, multipartUpload.getUploadId()));
+				}
+				if (!listing.isTruncated())
+					break;
+				request.setKeyMarker(listing.getNextKeyMarker());
+				request.setUploadIdMarker(listing.getNextUploadIdMarker());
+			}
+		}
+		catch (Exception e)
+		{
+			logger.warn(MODULE_NAME + ".abortOrphanedUploads [" + appInstance.getContextStr() + "/" + mediaName + "] error aborting orphaned multipart uploads", e);
+		}
+	}
+
+	private void uploadStarted(String mediaName, String uploadName, Upload upload, boolean reserved)
+	{
+		synchronized(lock)
+		{
+			if (!reserved)
+				currentUploads.add(uploadName);
+			activeUploads.put(mediaName, upload);
+		}
+		long size = new File(storageDir, mediaName).length();
+		// compressed uploads send fewer bytes than are in the file.
+		if (upload.getProgress().getTotalBytesToTransfer() > 0)
+			size = upload.getProgress().getTotalBytesToTransfer();
+		upload.addProgressListener(new ProgressListener(mediaName, uploadName, upload, size));
+		publishEvent(UploadEvent.Type.STARTED, mediaName, uploadName, upload.getProgress().getBytesTransferred(), size, null, null);
+	}
+
+	private void setAcl(PutObjectRequest putObjectRequest)
+	{
+		// if the user has specified ACL properties, setup the putObjectRequest with the acl permissions generated
+		if (acl != null)
+		{
+			putObjectRequest.withAccessControlList(acl);
+		}
+		// else add cannedACL if one is set
+		else if (cannedAcl != null)
+		{
+			putObjectRequest.withCannedAcl(cannedAcl);
+		}
+	}
+
+	private void startCompressedUpload(final String mediaName, final String uploadName, final File mediaFile)
+	{
+		appInstance.getVHost().getThreadPool().execute(new Runnable()
+		{
+
+			@Override
+			public void run()
+			{
+				Upload upload = null;
+				try
+				{
+					synchronized(lock)
+					{
+						if (shuttingDown)
+							return;
+					}
+					PutObjectRequest putObjectRequest = createCompressedPutObjectRequest(mediaName, uploadName, mediaFile);
+					setAcl(putObjectRequest);
+					upload = transferManager.upload(putObjectRequest);
+					uploadStarted(mediaName, uploadName, upload, true);
+				}
+				catch (Exception e)
+				{
+					logger.error(MODULE_NAME + ".startCompressedUpload error compressing or starting upload: [" + appInstance.getContextStr() + "/" + mediaName + "]", e);
+				}
+				finally
+				{
+					if (upload == null)
+					{
+						boolean restart;
+						synchronized(lock)
+						{
+							currentUploads.remove(uploadName);
+							restart = restartFailedUploads && !shuttingDown;
+						}
+						UploadScheduler.getInstance().finished(ModuleS3Upload.this, mediaName, false);
+						if (restart)
+							startUpload(mediaName, restartFailedUploadsTimeout + getFileAge(mediaName));
+					}
+				}
+			}
+		});
+	}
+
+	private PutObjectRequest createCompressedPutObjectRequest(String mediaName, String uploadName, File mediaFile) throws IOException
+	{
+		// compressed uploads are sent from memory so they can't be paused and resumed, but they are small enough to just start again.
+		byte[] data = ContentPolicy.gzip(mediaFile);
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentLength(data.length);
+		metadata.setContentEncoding("gzip");
+		String contentType = ContentPolicy.getContentType(mediaFile.getName());
+		if (contentType != null)
+			metadata.setContentType(contentType);
+		PutObjectRequest putObjectRequest = new PutObjectRequest(bucketName, uploadName, new ByteArrayInputStream(data), metadata);
+		// let the sdk reset the stream to retry the whole request.
+		putObjectRequest.getRequestClientOptions().setReadLimit(data.length + 1);
+		if (debugLog)
+			logger.info(MODULE_NAME + ".startUpload compressed [" + appInstance.getContextStr() + "/" + mediaName + "] from " + mediaFile.length() + " to " + data.length + " bytes", WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
+		return putObjectRequest;
+	}
+
+	private String getUploadName(String mediaName)
+	{
+		// reuse the key this recording was given before a restart in case the shard count or versioning has changed since.
+		String uploadName = getManifestKey(mediaName);
+		if (uploadName != null)
+		{
+			if (debugLog)
+				logger.info(MODULE_NAME + ".getUploadName using key from manifest for [" + appInstance.getContextStr() + "/" + mediaName + "] key: " + uploadName, WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
+			return uploadName;
+		}
+
+		uploadName = getBaseUploadName(mediaName);
+		if (versionFile)
+		{
+			uploadName = getMediaNameVersion(uploadName);
+		}
+
+		// saved before the upload starts so that a multipart upload left behind by a crash can be found and aborted. The .upload file is still empty here so it
+		// hasn't been modified since it was created.
+		long created = new File(storageDir, mediaName + ".upload").lastModified();
+		synchronized(lock)
+		{
+			keyManifest.setProperty(mediaName, created + " " + uploadName);
+			storeProperties(keyManifestFile, keyManifest, MODULE_NAME + " upload keys");
+		}
+		return uploadName;
+	}
+
+	private String getManifestKey(String mediaName)
+	{
+		String entry;
+		synchronized(lock)
+		{
+			entry = keyManifest.getProperty(mediaName);
+		}
+		if (entry == null)
+			return null;
+		Matcher matcher = KEY_MANIFEST_ENTRY.matcher(entry);
+		// older entries hold just the key.
+		return matcher.matches() ? matcher.group(2) : entry;
+	}
+
+	private long getManifestCreated(String mediaName)
+	{
+		String entry;
+		synchronized(lock)
+		{
+			entry = keyManifest.getProperty(mediaName);
+		}
+		if (entry == null)
+			return -1;
+		Matcher matcher = KEY_MANIFEST_ENTRY.matcher(entry);
+		return matcher.matches() ? Long.parseLong(matcher.group(1)) : -1;
+	}
+
+	private String getBaseUploadName(String mediaName)
+	{
+		String uploadName = mediaName;
+		if (keyShards > 0)
+		{
+			// versions of the same recording stay in the same shard so getMediaNameVersion only has to look in one place.
+			String shardName = versionFile && stripRecorderVersioning ? stripRecorderVersion(mediaName) : mediaName;
+			uploadName = getKeyShard(shardName, keyShards) + "/" + mediaName;
+		}
+
+		if (!StringUtils.isEmpty(filePrefix))
+		{
+			uploadName = filePrefix + (filePrefix.endsWith("/") ? "" : "/") + uploadName;
+		}
+		return uploadName;
+	}
+
+	/**
+	 * Returns the hash partition used for a recording when s3UploadKeyShards is set.
+	 * The shard is the first 4 bytes of the MD5 of the media name (relative to the storage dir, using / separators) as an unsigned int, modulo shards, in lowercase hex zero padded to the width of shards - 1.
+	 * When s3UploadVersionFile and s3UploadStripRecorderVersioning are both set, the media name is hashed with the recorder version (_0, _1 etc.) removed.
+	 */
+	public static String getKeyShard(String mediaName, int shards)
+	{
+		byte[] digest = null;
+		try
+		{
+			digest = MessageDigest.getInstance("MD5").digest(mediaName.replace(File.separatorChar, '/').getBytes(StandardCharsets.UTF_8));
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException("MD5 not available", e);
+		}
+		long hash = ((digest[0] & 0xffL) << 24) | ((digest[1] & 0xffL) << 16) | ((digest[2] & 0xffL) << 8) | (digest[3] & 0xffL);
+		int width = Integer.toHexString(Math.max(shards - 1, 1)).length();
+		StringBuilder shard = new StringBuilder(Long.toHexString(hash % shards));
+		while (shard.length() < width)
+			shard.insert(0, '0');
+		return shard.toString();
+	}
+
+	private void loadKeyManifest()
+	{
+		synchronized(lock)
+		{
+			keyManifest = loadProperties(keyManifestFile);
+			// drop keys for recordings that are no longer waiting to be uploaded.
+			boolean changed = false;
+			Iterator<Object> iter = keyManifest.keySet().iterator();
+			while (iter.hasNext())
+			{
+				String mediaName = (String)iter.next();
+				if (!new File(storageDir, mediaName + ".upload").exists())
+				{
+					iter.remove();
+					changed = true;
+				}
+			}
+			if (changed)
+				storeProperties(keyManifestFile, keyManifest, MODULE_NAME + " upload keys");
 		}
 	}
 
@@ -778,18 +2229,7 @@ public class ModuleS3Upload extends ModuleBase
 	private String getMediaNameVersion(String mediaName)
 	{
 		if (stripRecorderVersioning)
-		{
-			Pattern pattern = Pattern.compile("(.*)(_\\d+)(\\.\\w+)");
-			Matcher matcher = pattern.matcher(mediaName);
-			if (debugLog)
-				logger.info(MODULE_NAME + ".getMediaNameVersion stripRecorderVersioning: " + mediaName + ": " + matcher.toString(), WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
-			if (matcher.matches())
-			{
-				mediaName = matcher.group(1) + matcher.group(3);
-				if (debugLog)
-					logger.info(MODULE_NAME + ".getMediaNameVersion stripRecorderVersioning new mediaName: " + mediaName, WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
-			}
-		}
+			mediaName = stripRecorderVersion(mediaName);
 
 		boolean exists = doesObjectExistOnS3(mediaName);
 
@@ -823,6 +2263,21 @@ public class ModuleS3Upload extends ModuleBase
 		return newName;
 	}
 
+	private String stripRecorderVersion(String mediaName)
+	{
+		Pattern pattern = Pattern.compile("(.*)(_\\d+)(\\.\\w+)");
+		Matcher matcher = pattern.matcher(mediaName);
+		if (debugLog)
+			logger.info(MODULE_NAME + ".getMediaNameVersion stripRecorderVersioning: " + mediaName + ": " + matcher.toString(), WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
+		if (matcher.matches())
+		{
+			mediaName = matcher.group(1) + matcher.group(3);
+			if (debugLog)
+				logger.info(MODULE_NAME + ".getMediaNameVersion stripRecorderVersioning new mediaName: " + mediaName, WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
+		}
+		return mediaName;
+	}
+
 	private boolean doesObjectExistOnS3(String mediaName)
 	{
 		AmazonS3 s3 = transferManager.getAmazonS3Client();
@@ -0,0 +1,122 @@
+/*
+ * This code and all components (c) Copyright 2006 - 2018, Wowza Media Systems, LLC. All rights reserved.
+ * This code is licensed pursuant to the Wowza Public License version 1.0, available at www.wowza.com/legal.
+ */
+package com.wowza.wms.plugin.s3upload;
+
+import java.util.List;
+
+public class ModuleS3UploadControl implements ModuleS3UploadControlMBean
+{
+	private final ModuleS3Upload module;
+
+	ModuleS3UploadControl(ModuleS3Upload module)
+	{
+		this.module = module;
+	}
+
+	@Override
+	public String[] getUploads()
+	{
+		List<String> uploads = module.getUploadStatus();
+		return uploads.toArray(new String[uploads.size()]);
+	}
+
+	@Override
+	public boolean pauseUpload(String mediaName)
+	{
+		return module.pauseUpload(mediaName);
+	}
+
+	@Override
+	public boolean resumeUpload(String mediaName)
+	{
+		return module.resumeUpload(mediaName);
+	}
+
+	@Override
+	public int pauseAllUploads()
+	{
+		return module.pauseAllUploads();
+	}
+
+	@Override
+	public int resumeAllUploads()
+	{
+		return module.resumeAllUploads();
+	}
+
+	@Override
+	public boolean cancelUpload(String mediaName)
+	{
+		return module.cancelUpload(mediaName);
+	}
+
+	@Override
+	public boolean setUploadPriorityClass(String mediaName, String priorityClass)
+	{
+		return module.setUploadPriorityClass(mediaName, parse(priorityClass));
+	}
+
+	@Override
+	public int rescanUploads()
+	{
+		return module.rescanUploads();
+	}
+
+	@Override
+	public String getPriorityClass()
+	{
+		return module.getPriorityClass().name().toLowerCase();
+	}
+
+	@Override
+	public void setPriorityClass(String priorityClass)
+	{
+		module.setPriorityClass(parse(priorityClass));
+	}
+
+	@Override
+	public long getWindowRate()
+	{
+		return module.getWindowRate();
+	}
+
+	@Override
+	public void setWindowRate(long bytesPerSecond)
+	{
+		module.setWindowRate(bytesPerSecond);
+	}
+
+	@Override
+	public long getOutsideWindowRate()
+	{
+		return module.getOutsideWindowRate();
+	}
+
+	@Override
+	public void setOutsideWindowRate(long bytesPerSecond)
+	{
+		module.setOutsideWindowRate(bytesPerSecond);
+	}
+
+	@Override
+	public int getMaxConcurrentUploads()
+	{
+		return UploadScheduler.getInstance().getMaxConcurrentUploads();
+	}
+
+	@Override
+	public void setMaxConcurrentUploads(int maxConcurrentUploads)
+	{
+		module.setMaxConcurrentUploads(maxConcurrentUploads);
+	}
+
+	private UploadScheduler.PriorityClass parse(String priorityClass)
+	{
+		UploadScheduler.PriorityClass p = UploadScheduler.PriorityClass.parse(priorityClass, null);
+		if (p == null)
+			throw new IllegalArgumentException("Invalid priority class: " + priorityClass + ", expected high, normal or low");
+		return p;
+	}
+}
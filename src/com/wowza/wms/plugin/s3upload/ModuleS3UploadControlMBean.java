@@ -0,0 +1,44 @@
+/*
+ * This code and all components (c) Copyright 2006 - 2018, Wowza Media Systems, LLC. All rights reserved.
+ * This code is licensed pursuant to the Wowza Public License version 1.0, available at www.wowza.com/legal.
+ */
+package com.wowza.wms.plugin.s3upload;
+
+/**
+ * JMX interface for controlling the uploads of one application instance without restarting it.
+ * Registered as com.wowza.wms.plugin.s3upload:type=ModuleS3Upload,context=[vhost/application/instance].
+ */
+public interface ModuleS3UploadControlMBean
+{
+	public String[] getUploads();
+
+	public boolean pauseUpload(String mediaName);
+
+	public boolean resumeUpload(String mediaName);
+
+	public int pauseAllUploads();
+
+	public int resumeAllUploads();
+
+	public boolean cancelUpload(String mediaName);
+
+	public boolean setUploadPriorityClass(String mediaName, String priorityClass);
+
+	public int rescanUploads();
+
+	public String getPriorityClass();
+
+	public void setPriorityClass(String priorityClass);
+
+	public long getWindowRate();
+
+	public void setWindowRate(long bytesPerSecond);
+
+	public long getOutsideWindowRate();
+
+	public void setOutsideWindowRate(long bytesPerSecond);
+
+	public int getMaxConcurrentUploads();
+
+	public void setMaxConcurrentUploads(int maxConcurrentUploads);
+}
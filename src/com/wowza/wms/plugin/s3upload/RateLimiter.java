@@ -0,0 +1,52 @@
+/*
+ * This code and all components (c) Copyright 2006 - 2018, Wowza Media Systems, LLC. All rights reserved.
+ * This code is licensed pursuant to the Wowza Public License version 1.0, available at www.wowza.com/legal.
+ */
+package com.wowza.wms.plugin.s3upload;
+
+/**
+ * Limits the combined rate of the uploads that call acquire by making the calling thread wait until the bytes are allowed to go.
+ * Up to one second of unused rate can be used in a burst.
+ */
+class RateLimiter
+{
+	private static final long BURST_NANOS = 1000000000l;
+
+	private long bytesPerSecond = 0;
+	private long nextFree = 0;
+
+	synchronized void setRate(long bytesPerSecond)
+	{
+		this.bytesPerSecond = bytesPerSecond;
+		nextFree = System.nanoTime();
+	}
+
+	synchronized long getRate()
+	{
+		return bytesPerSecond;
+	}
+
+	void acquire(long bytes)
+	{
+		long wait = 0;
+		synchronized(this)
+		{
+			if (bytesPerSecond <= 0 || bytes <= 0)
+				return;
+			long now = System.nanoTime();
+			nextFree = Math.max(nextFree, now - BURST_NANOS) + (long)(bytes * 1000000000.0 / bytesPerSecond);
+			wait = nextFree - now;
+		}
+		if (wait > 0)
+		{
+			try
+			{
+				Thread.sleep(wait / 1000000l, (int)(wait % 1000000l));
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
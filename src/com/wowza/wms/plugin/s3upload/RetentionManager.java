@@ -0,0 +1,279 @@
+/*
+ * This code and all components (c) Copyright 2006 - 2018, Wowza Media Systems, LLC. All rights reserved.
+ * This code is licensed pursuant to the Wowza Public License version 1.0, available at www.wowza.com/legal.
+ */
+package com.wowza.wms.plugin.s3upload;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps track of original recordings that have been uploaded to S3 so they can be kept locally and deleted when the storage volume is running out of space.
+ * Only files that have been uploaded are tracked so anything still waiting to be uploaded is never deleted.
+ * The size and modified time of each file are recorded when it is added and a file that no longer matches is dropped from the index rather than deleted, so a new recording written under the same name is never removed.
+ * When the recorder has renamed an uploaded file to a versioned name (name_0.mp4 etc.) it is tracked under the new name.
+ * The least recently used files are deleted first, using the file's last access time where the file system keeps it, otherwise the time it was uploaded.
+ */
+class RetentionManager
+{
+	private final File storageDir;
+	private final File indexFile;
+
+	// media name -> upload completed time,size,last modified.
+	private final Properties index = new Properties();
+
+	RetentionManager(File storageDir, File indexFile)
+	{
+		this.storageDir = storageDir;
+		this.indexFile = indexFile;
+	}
+
+	synchronized void load() throws IOException
+	{
+		if (!indexFile.exists())
+			return;
+
+		FileInputStream fis = null;
+		try
+		{
+			fis = new FileInputStream(indexFile);
+			index.load(fis);
+		}
+		finally
+		{
+			if (fis != null)
+			{
+				try
+				{
+					fis.close();
+				}
+				catch (IOException e)
+				{
+				}
+			}
+		}
+
+		// drop anything that has been deleted or replaced outside of the module.
+		if (verifyAll())
+			save();
+	}
+
+	synchronized void add(String mediaName) throws IOException
+	{
+		File file = new File(storageDir, mediaName);
+		index.setProperty(mediaName, System.currentTimeMillis() + "," + file.length() + "," + file.lastModified());
+		save();
+	}
+
+	/**
+	 * Stops tracking mediaName because a new recording has been written under that name.
+	 * If the uploaded file was renamed to a versioned name first it is tracked under that name instead.
+	 */
+	synchronized void replaced(String mediaName) throws IOException
+	{
+		if (!index.containsKey(mediaName))
+			return;
+		if (verify(mediaName) != null)
+			index.remove(mediaName);
+		save();
+	}
+
+	synchronized int size()
+	{
+		return index.size();
+	}
+
+	/**
+	 * Returns the free space on the volume holding dir as a percentage of its size.
+	 */
+	static double getFreePercent(File dir)
+	{
+		long total = dir.getTotalSpace();
+		if (total <= 0)
+			return 100;
+		return dir.getUsableSpace() * 100.0 / total;
+	}
+
+	/**
+	 * Deletes uploaded files, least recently used first, until the free space is at least targetFreePercent.
+	 * Returns the names of the files that were deleted.
+	 */
+	synchronized List<String> evict(double targetFreePercent) throws IOException
+	{
+		List<String> evicted = new ArrayList<String>();
+		if (index.isEmpty() || getFreePercent(storageDir) >= targetFreePercent)
+			return evicted;
+
+		// only delete files that are still the ones that were uploaded.
+		verifyAll();
+
+		final Map<String, Long> lastUsed = new HashMap<String, Long>();
+		for (Map.Entry<Object, Object> entry : index.entrySet())
+		{
+			String mediaName = (String)entry.getKey();
+			long used = parseLong(((String)entry.getValue()).split(",")[0]);
+			File file = new File(storageDir, mediaName);
+			try
+			{
+				used = Math.max(used, Files.readAttributes(file.toPath(), BasicFileAttributes.class).lastAccessTime().toMillis());
+			}
+			catch (IOException e)
+			{
+				// fall back to the upload time.
+			}
+			lastUsed.put(mediaName, used);
+		}
+
+		List<String> candidates = new ArrayList<String>(lastUsed.keySet());
+		Collections.sort(candidates, new Comparator<String>()
+		{
+			public int compare(String m1, String m2)
+			{
+				return lastUsed.get(m1).compareTo(lastUsed.get(m2));
+			}
+		});
+
+		for (String mediaName : candidates)
+		{
+			if (getFreePercent(storageDir) >= targetFreePercent)
+				break;
+			File file = new File(storageDir, mediaName);
+			// never remove a file that has been queued for upload again since it was retained.
+			if (new File(storageDir, mediaName + ".upload").exists())
+			{
+				index.remove(mediaName);
+				continue;
+			}
+			if (!file.exists() || file.delete())
+			{
+				index.remove(mediaName);
+				evicted.add(mediaName);
+			}
+		}
+		save();
+		return evicted;
+	}
+
+	private boolean verifyAll()
+	{
+		boolean changed = false;
+		for (Object key : new ArrayList<Object>(index.keySet()))
+		{
+			String mediaName = (String)key;
+			if (!mediaName.equals(verify(mediaName)))
+				changed = true;
+		}
+		return changed;
+	}
+
+	/**
+	 * Checks that the file for mediaName is the one that was uploaded. If it isn't, the entry is moved to the versioned file it was renamed to, if there is one, or dropped.
+	 * Returns the name the file is now tracked under or null if it isn't tracked.
+	 */
+	private String verify(String mediaName)
+	{
+		String value = index.getProperty(mediaName);
+		if (value == null)
+			return null;
+		String[] parts = value.split(",");
+		long uploaded = parseLong(parts[0]);
+		long size = parts.length > 2 ? parseLong(parts[1]) : -1;
+		long lastModified = parts.length > 2 ? parseLong(parts[2]) : -1;
+
+		File file = new File(storageDir, mediaName);
+		if (matches(file, size, lastModified, uploaded))
+			return mediaName;
+
+		index.remove(mediaName);
+		if (size < 0)
+			return null;
+		// the recorder renames the previous file when it starts a new one with the same name. Renaming keeps the size and modified time.
+		String renamed = findRenamed(mediaName, size, lastModified, uploaded);
+		if (renamed != null)
+			index.setProperty(renamed, value);
+		return renamed;
+	}
+
+	private String findRenamed(String mediaName, long size, long lastModified, long uploaded)
+	{
+		File file = new File(storageDir, mediaName);
+		File dir = file.getParentFile();
+		String name = file.getName();
+		String base = name;
+		String ext = "";
+		int extIndex = name.lastIndexOf('.');
+		if (extIndex >= 0)
+		{
+			base = name.substring(0, extIndex);
+			ext = name.substring(extIndex);
+		}
+		Pattern pattern = Pattern.compile(Pattern.quote(base) + "_\\d+" + Pattern.quote(ext));
+		File[] candidates = dir.listFiles();
+		if (candidates == null)
+			return null;
+		String path = mediaName.substring(0, mediaName.length() - name.length());
+		for (File candidate : candidates)
+		{
+			if (!pattern.matcher(candidate.getName()).matches())
+				continue;
+			String candidateName = path + candidate.getName();
+			if (index.containsKey(candidateName) || new File(storageDir, candidateName + ".upload").exists())
+				continue;
+			if (matches(candidate, size, lastModified, uploaded))
+				return candidateName;
+		}
+		return null;
+	}
+
+	private static boolean matches(File file, long size, long lastModified, long uploaded)
+	{
+		return size >= 0 && file.isFile() && file.length() == size && file.lastModified() == lastModified && lastModified <= uploaded;
+	}
+
+	private void save() throws IOException
+	{
+		FileOutputStream fos = null;
+		try
+		{
+			fos = new FileOutputStream(indexFile);
+			index.store(fos, ModuleS3Upload.MODULE_NAME + " retained files");
+		}
+		finally
+		{
+			if (fos != null)
+			{
+				try
+				{
+					fos.close();
+				}
+				catch (IOException e)
+				{
+				}
+			}
+		}
+	}
+
+	private static long parseLong(String value)
+	{
+		try
+		{
+			return Long.parseLong(value);
+		}
+		catch (NumberFormatException e)
+		{
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,152 @@
+/*
+ * This code and all components (c) Copyright 2006 - 2018, Wowza Media Systems, LLC. All rights reserved.
+ * This code is licensed pursuant to the Wowza Public License version 1.0, available at www.wowza.com/legal.
+ */
+package com.wowza.wms.plugin.s3upload;
+
+/**
+ * An upload lifecycle event published to the IUploadEventSinks configured with s3UploadEventSinks.
+ */
+public class UploadEvent
+{
+	public enum Type
+	{
+		QUEUED, STARTED, PROGRESS, COMPLETED, FAILED
+	}
+
+	private final Type type;
+	private final long timestamp;
+	private final String context;
+	private final String mediaName;
+	private final String bucketName;
+	private final String key;
+	private final long bytesTransferred;
+	private final long totalBytes;
+	private final String eTag;
+	private final String message;
+
+	UploadEvent(Type type, String context, String mediaName, String bucketName, String key, long bytesTransferred, long totalBytes, String eTag, String message)
+	{
+		this.type = type;
+		this.timestamp = System.currentTimeMillis();
+		this.context = context;
+		this.mediaName = mediaName;
+		this.bucketName = bucketName;
+		this.key = key;
+		this.bytesTransferred = bytesTransferred;
+		this.totalBytes = totalBytes;
+		this.eTag = eTag;
+		this.message = message;
+	}
+
+	public Type getType()
+	{
+		return type;
+	}
+
+	public long getTimestamp()
+	{
+		return timestamp;
+	}
+
+	public String getContext()
+	{
+		return context;
+	}
+
+	public String getMediaName()
+	{
+		return mediaName;
+	}
+
+	public String getBucketName()
+	{
+		return bucketName;
+	}
+
+	public String getKey()
+	{
+		return key;
+	}
+
+	public long getBytesTransferred()
+	{
+		return bytesTransferred;
+	}
+
+	public long getTotalBytes()
+	{
+		return totalBytes;
+	}
+
+	public String getETag()
+	{
+		return eTag;
+	}
+
+	public String getMessage()
+	{
+		return message;
+	}
+
+	public String toJSON()
+	{
+		StringBuilder json = new StringBuilder();
+		json.append("{\"type\":\"").append(type.name().toLowerCase()).append("\"");
+		json.append(",\"timestamp\":").append(timestamp);
+		appendString(json, "context", context);
+		appendString(json, "mediaName", mediaName);
+		appendString(json, "bucket", bucketName);
+		appendString(json, "key", key);
+		if (bytesTransferred >= 0)
+			json.append(",\"bytesTransferred\":").append(bytesTransferred);
+		if (totalBytes >= 0)
+			json.append(",\"totalBytes\":").append(totalBytes);
+		appendString(json, "eTag", eTag);
+		appendString(json, "message", message);
+		json.append("}");
+		return json.toString();
+	}
+
+	private static void appendString(StringBuilder json, String name, String value)
+	{
+		if (value == null)
+			return;
+		json.append(",\"").append(name).append("\":\"");
+		for (int i = 0; i < value.length(); i++)
+		{
+			char c = value.charAt(i);
+			switch (c)
+			{
+			case '"':
+				json.append("\\\"");
+				break;
+			case '\\':
+				json.append("\\\\");
+				break;
+			case '\n':
+				json.append("\\n");
+				break;
+			case '\r':
+				json.append("\\r");
+				break;
+			case '\t':
+				json.append("\\t");
+				break;
+			default:
+				if (c < 0x20)
+					json.append(String.format("\\u%04x", (int)c));
+				else
+					json.append(c);
+				break;
+			}
+		}
+		json.append("\"");
+	}
+
+	@Override
+	public String toString()
+	{
+		return toJSON();
+	}
+}
@@ -0,0 +1,181 @@
+/*
+ * This code and all components (c) Copyright 2006 - 2018, Wowza Media Systems, LLC. All rights reserved.
+ * This code is licensed pursuant to the Wowza Public License version 1.0, available at www.wowza.com/legal.
+ */
+package com.wowza.wms.plugin.s3upload;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.wowza.wms.logging.WMSLogger;
+import com.wowza.wms.logging.WMSLoggerIDs;
+
+/**
+ * Hands upload events to the sinks so that a slow sink can't hold up an upload.
+ * Each sink has its own queue and thread so a sink that is failing or slow, such as a webhook that is down and retrying, only holds up its own events.
+ * publish never blocks. If a sink's queue is full the event is dropped for that sink and counted.
+ * Events are passed to each sink in batches of up to batchSize, or whatever has arrived after batchInterval milliseconds.
+ */
+class UploadEventBus
+{
+	private static final long CLOSE_TIMEOUT = 5000l;
+
+	private final WMSLogger logger;
+	private final String context;
+	private final List<SinkWorker> workers = new ArrayList<SinkWorker>();
+	private final int batchSize;
+	private final long batchInterval;
+
+	private volatile boolean running = true;
+
+	private class SinkWorker implements Runnable
+	{
+		final IUploadEventSink sink;
+		final BlockingQueue<UploadEvent> queue;
+		final AtomicLong dropped = new AtomicLong();
+		final Thread thread;
+
+		SinkWorker(IUploadEventSink sink, int queueSize)
+		{
+			this.sink = sink;
+			this.queue = new ArrayBlockingQueue<UploadEvent>(Math.max(queueSize, 1));
+			thread = new Thread(this, "S3UploadEventBus: [" + context + "] " + sink.getClass().getSimpleName());
+			thread.setDaemon(true);
+		}
+
+		void publish(UploadEvent event)
+		{
+			if (!queue.offer(event))
+			{
+				long count = dropped.incrementAndGet();
+				// don't flood the log if a sink has stopped keeping up.
+				if (count == 1 || count % 1000 == 0)
+					logger.warn(ModuleS3Upload.MODULE_NAME + ".UploadEventBus.publish [" + context + "] event queue full for sink: " + sink.getClass().getName() + ", events dropped: " + count, WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
+			}
+		}
+
+		@Override
+		public void run()
+		{
+			List<UploadEvent> batch = new ArrayList<UploadEvent>();
+			while (running)
+			{
+				try
+				{
+					UploadEvent event = queue.poll(batchInterval, TimeUnit.MILLISECONDS);
+					if (event != null)
+					{
+						batch.add(event);
+						long batchEnd = System.currentTimeMillis() + batchInterval;
+						while (batch.size() < batchSize)
+						{
+							long wait = batchEnd - System.currentTimeMillis();
+							if (wait <= 0)
+								break;
+							event = queue.poll(wait, TimeUnit.MILLISECONDS);
+							if (event == null)
+								break;
+							batch.add(event);
+						}
+					}
+				}
+				catch (InterruptedException e)
+				{
+					// closing. Send whatever is left.
+				}
+				if (!running)
+					queue.drainTo(batch);
+				if (!batch.isEmpty())
+				{
+					send(batch);
+					batch = new ArrayList<UploadEvent>();
+				}
+			}
+			// close may have interrupted a send while more events were queued.
+			Thread.interrupted();
+			queue.drainTo(batch);
+			if (!batch.isEmpty())
+				send(batch);
+		}
+
+		private void send(List<UploadEvent> batch)
+		{
+			try
+			{
+				sink.send(batch);
+			}
+			catch (Exception e)
+			{
+				logger.warn(ModuleS3Upload.MODULE_NAME + ".UploadEventBus.send [" + context + "] sink: " + sink.getClass().getName() + " dropped " + batch.size() + " events: " + e.getMessage(), WMSLoggerIDs.CAT_application, WMSLoggerIDs.EVT_comment);
+			}
+		}
+	}
+
+	UploadEventBus(WMSLogger logger, String context, List<IUploadEventSink> sinks, int queueSize, int batchSize, long batchInterval)
+	{
+		this.logger = logger;
+		this.context = context;
+		this.batchSize = Math.max(batchSize, 1);
+		// a zero wait would have the sink threads spinning.
+		this.batchInterval = Math.max(batchInterval, 1);
+		for (IUploadEventSink sink : sinks)
+			workers.add(new SinkWorker(sink, queueSize));
+	}
+
+	void start()
+	{
+		for (SinkWorker worker : workers)
+			worker.thread.start();
+	}
+
+	void publish(UploadEvent event)
+	{
+		if (!running)
+			return;
+		for (SinkWorker worker : workers)
+			worker.publish(event);
+	}
+
+	long getDropped()
+	{
+		long dropped = 0;
+		for (SinkWorker worker : workers)
+			dropped += worker.dropped.get();
+		return dropped;
+	}
+
+	void close()
+	{
+		running = false;
+		for (SinkWorker worker : workers)
+			worker.thread.interrupt();
+		long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT;
+		for (SinkWorker worker : workers)
+		{
+			try
+			{
+				worker.thread.join(Math.max(deadline - System.currentTimeMillis(), 1));
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		for (SinkWorker worker : workers)
+		{
+			try
+			{
+				worker.sink.close();
+			}
+			catch (Exception e)
+			{
+				logger.warn(ModuleS3Upload.MODULE_NAME + ".UploadEventBus.close [" + context + "] error closing sink: " + worker.sink.getClass().getName(), e);
+			}
+		}
+	}
+}
@@ -0,0 +1,287 @@
+/*
+ * This code and all components (c) Copyright 2006 - 2018, Wowza Media Systems, LLC. All rights reserved.
+ * This code is licensed pursuant to the Wowza Public License version 1.0, available at www.wowza.com/legal.
+ */
+package com.wowza.wms.plugin.s3upload;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Decides which upload runs next when the number of concurrent uploads is limited (s3UploadMaxConcurrentUploads).
+ * Shared by all of the application instances using the module so that they compete for the same upload slots.
+ *
+ * Uploads that have waited longer than their starvation timeout go first, oldest first. The rest are taken in priority class order.
+ * Within a class, uploads that can still meet their deadline go earliest deadline first, then uploads that will miss their deadline, then uploads without a deadline in the order they were recorded.
+ * Whether an upload can meet its deadline is estimated from its size and the throughput measured from previous uploads.
+ */
+class UploadScheduler
+{
+	enum PriorityClass
+	{
+		LOW, NORMAL, HIGH;
+
+		static PriorityClass parse(String value, PriorityClass defaultValue)
+		{
+			if (value == null)
+				return defaultValue;
+			for (PriorityClass p : values())
+			{
+				if (p.name().equalsIgnoreCase(value.trim()))
+					return p;
+			}
+			return defaultValue;
+		}
+	}
+
+	static class Job
+	{
+		final ModuleS3Upload module;
+		final String mediaName;
+		final long size;
+		final long readyTime;
+		PriorityClass priorityClass;
+		long deadline;
+		long starvationTimeout;
+		long startTime = -1;
+
+		Job(ModuleS3Upload module, String mediaName, long size, long readyTime, PriorityClass priorityClass, long deadline, long starvationTimeout)
+		{
+			this.module = module;
+			this.mediaName = mediaName;
+			this.size = size;
+			this.readyTime = readyTime;
+			this.priorityClass = priorityClass;
+			this.deadline = deadline;
+			this.starvationTimeout = starvationTimeout;
+		}
+
+		boolean hasDeadline()
+		{
+			return deadline != Long.MAX_VALUE;
+		}
+	}
+
+	// bytes per millisecond used until an upload has been measured.
+	private static final double DEFAULT_THROUGHPUT = 1000.0;
+	private static final double THROUGHPUT_WEIGHT = 0.3;
+
+	private static final int RANK_STARVED = 0;
+	private static final int RANK_ON_TIME = 1;
+	private static final int RANK_LATE = 2;
+	private static final int RANK_NO_DEADLINE = 3;
+
+	private static final UploadScheduler instance = new UploadScheduler();
+
+	private final Object lock = new Object();
+	private final List<Job> queued = new ArrayList<Job>();
+	private final List<Job> running = new ArrayList<Job>();
+
+	private int maxConcurrentUploads = 0;
+	private double throughput = DEFAULT_THROUGHPUT;
+
+	static UploadScheduler getInstance()
+	{
+		return instance;
+	}
+
+	void setMaxConcurrentUploads(int maxConcurrentUploads)
+	{
+		synchronized(lock)
+		{
+			// shared by all applications so use the largest value that has been configured.
+			this.maxConcurrentUploads = Math.max(this.maxConcurrentUploads, maxConcurrentUploads);
+		}
+		dispatch();
+	}
+
+	void resetMaxConcurrentUploads(int maxConcurrentUploads)
+	{
+		synchronized(lock)
+		{
+			this.maxConcurrentUploads = maxConcurrentUploads;
+		}
+		dispatch();
+	}
+
+	int getMaxConcurrentUploads()
+	{
+		synchronized(lock)
+		{
+			return maxConcurrentUploads;
+		}
+	}
+
+	void submit(Job job)
+	{
+		synchronized(lock)
+		{
+			if (find(queued, job.module, job.mediaName) != null || find(running, job.module, job.mediaName) != null)
+				return;
+			queued.add(job);
+		}
+		dispatch();
+	}
+
+	void finished(ModuleS3Upload module, String mediaName, boolean success)
+	{
+		synchronized(lock)
+		{
+			Job job = find(running, module, mediaName);
+			if (job != null)
+			{
+				running.remove(job);
+				long duration = System.currentTimeMillis() - job.startTime;
+				if (success && job.size > 0 && duration > 0)
+					throughput = (THROUGHPUT_WEIGHT * ((double)job.size / duration)) + ((1 - THROUGHPUT_WEIGHT) * throughput);
+			}
+		}
+		dispatch();
+	}
+
+	boolean setPriorityClass(ModuleS3Upload module, String mediaName, PriorityClass priorityClass)
+	{
+		synchronized(lock)
+		{
+			Job job = find(queued, module, mediaName);
+			if (job == null)
+				return false;
+			job.priorityClass = priorityClass;
+			return true;
+		}
+	}
+
+	boolean cancel(ModuleS3Upload module, String mediaName)
+	{
+		synchronized(lock)
+		{
+			Job job = find(queued, module, mediaName);
+			if (job == null)
+				return false;
+			queued.remove(job);
+			return true;
+		}
+	}
+
+	List<Job> getQueued(ModuleS3Upload module)
+	{
+		List<Job> jobs = new ArrayList<Job>();
+		synchronized(lock)
+		{
+			for (Job job : queued)
+			{
+				if (job.module == module)
+					jobs.add(job);
+			}
+		}
+		return jobs;
+	}
+
+	void removeAll(ModuleS3Upload module)
+	{
+		synchronized(lock)
+		{
+			removeAll(queued, module);
+			removeAll(running, module);
+		}
+		dispatch();
+	}
+
+	double getThroughput()
+	{
+		synchronized(lock)
+		{
+			return throughput;
+		}
+	}
+
+	long estimateDuration(long size)
+	{
+		return (long)(size / getThroughput());
+	}
+
+	private void dispatch()
+	{
+		List<Job> toStart = new ArrayList<Job>();
+		synchronized(lock)
+		{
+			long now = System.currentTimeMillis();
+			while (running.size() < maxConcurrentUploads && !queued.isEmpty())
+			{
+				Job next = selectNext(now);
+				queued.remove(next);
+				next.startTime = now;
+				running.add(next);
+				toStart.add(next);
+			}
+		}
+		for (Job job : toStart)
+		{
+			job.module.dispatchUpload(job);
+		}
+	}
+
+	private Job selectNext(long now)
+	{
+		Job best = null;
+		for (Job job : queued)
+		{
+			if (best == null || compare(job, best, now) < 0)
+				best = job;
+		}
+		return best;
+	}
+
+	private int compare(Job j1, Job j2, long now)
+	{
+		int r1 = rank(j1, now);
+		int r2 = rank(j2, now);
+		boolean starved1 = r1 == RANK_STARVED;
+		boolean starved2 = r2 == RANK_STARVED;
+		if (starved1 != starved2)
+			return starved1 ? -1 : 1;
+		if (starved1)
+			return Long.compare(j1.readyTime, j2.readyTime);
+
+		if (j1.priorityClass != j2.priorityClass)
+			return j2.priorityClass.compareTo(j1.priorityClass);
+		if (r1 != r2)
+			return Integer.compare(r1, r2);
+		if (r1 != RANK_NO_DEADLINE && j1.deadline != j2.deadline)
+			return Long.compare(j1.deadline, j2.deadline);
+		// shortest first on a tie so that more uploads finish on time.
+		if (r1 != RANK_NO_DEADLINE && j1.size != j2.size)
+			return Long.compare(j1.size, j2.size);
+		return Long.compare(j1.readyTime, j2.readyTime);
+	}
+
+	private int rank(Job job, long now)
+	{
+		if (job.starvationTimeout > 0 && now - job.readyTime >= job.starvationTimeout)
+			return RANK_STARVED;
+		if (!job.hasDeadline())
+			return RANK_NO_DEADLINE;
+		return now + (long)(job.size / throughput) <= job.deadline ? RANK_ON_TIME : RANK_LATE;
+	}
+
+	private Job find(List<Job> jobs, ModuleS3Upload module, String mediaName)
+	{
+		for (Job job : jobs)
+		{
+			if (job.module == module && job.mediaName.equals(mediaName))
+				return job;
+		}
+		return null;
+	}
+
+	private void removeAll(List<Job> jobs, ModuleS3Upload module)
+	{
+		Iterator<Job> iter = jobs.iterator();
+		while (iter.hasNext())
+		{
+			if (iter.next().module == module)
+				iter.remove();
+		}
+	}
+}
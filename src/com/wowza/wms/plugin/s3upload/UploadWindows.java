@@ -0,0 +1,109 @@
+/*
+ * This code and all components (c) Copyright 2006 - 2018, Wowza Media Systems, LLC. All rights reserved.
+ * This code is licensed pursuant to the Wowza Public License version 1.0, available at www.wowza.com/legal.
+ */
+package com.wowza.wms.plugin.s3upload;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+/**
+ * Times of day (server local time) when uploads can run at full rate, parsed from s3UploadWindows.
+ * The format is a comma separated list of HH:mm-HH:mm ranges. A range can wrap past midnight, e.g. 22:00-06:00.
+ */
+class UploadWindows
+{
+	private static final long MINUTE = 60000l;
+	private static final int MINUTES_PER_DAY = 24 * 60;
+
+	// start and end minute of the day for each window.
+	private final List<int[]> windows = new ArrayList<int[]>();
+
+	static UploadWindows parse(String value)
+	{
+		UploadWindows uploadWindows = new UploadWindows();
+		for (String range : value.split(","))
+		{
+			range = range.trim();
+			if (range.length() == 0)
+				continue;
+			String[] parts = range.split("-");
+			if (parts.length != 2)
+				throw new IllegalArgumentException("Invalid upload window: " + range);
+			uploadWindows.windows.add(new int[] { parseTime(parts[0]), parseTime(parts[1]) });
+		}
+		if (uploadWindows.windows.isEmpty())
+			throw new IllegalArgumentException("No upload windows: " + value);
+		return uploadWindows;
+	}
+
+	private static int parseTime(String time)
+	{
+		String[] parts = time.trim().split(":");
+		try
+		{
+			int hours = Integer.parseInt(parts[0]);
+			int minutes = parts.length > 1 ? Integer.parseInt(parts[1]) : 0;
+			if (parts.length > 2 || hours < 0 || hours > 24 || minutes < 0 || minutes > 59)
+				throw new IllegalArgumentException("Invalid upload window time: " + time);
+			return (hours * 60 + minutes) % MINUTES_PER_DAY;
+		}
+		catch (NumberFormatException e)
+		{
+			throw new IllegalArgumentException("Invalid upload window time: " + time, e);
+		}
+	}
+
+	boolean isOpen(long time)
+	{
+		Calendar cal = Calendar.getInstance();
+		cal.setTimeInMillis(time);
+		int minute = cal.get(Calendar.HOUR_OF_DAY) * 60 + cal.get(Calendar.MINUTE);
+		for (int[] window : windows)
+		{
+			int start = window[0];
+			int end = window[1];
+			if (start == end)
+				return true;
+			if (start < end ? minute >= start && minute < end : minute >= start || minute < end)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the time the window next opens or closes after time, or -1 if it never changes.
+	 */
+	long getNextChange(long time)
+	{
+		boolean open = isOpen(time);
+		long next = time - (time % MINUTE);
+		// windows are minute aligned so step through the next two days a minute at a time.
+		for (int i = 0; i <= 2 * MINUTES_PER_DAY; i++)
+		{
+			next += MINUTE;
+			if (isOpen(next) != open)
+				return next;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns how long uploads can run at full rate in the current window if it's open, or in the next window if it isn't.
+	 */
+	long getNextOpenDuration(long time)
+	{
+		long start = time;
+		if (!isOpen(time))
+		{
+			start = getNextChange(time);
+			if (start == -1)
+				return 0;
+		}
+		long end = getNextChange(start);
+		if (end == -1)
+			return Long.MAX_VALUE;
+		return end - start;
+	}
+}
@@ -0,0 +1,157 @@
+/*
+ * This code and all components (c) Copyright 2006 - 2018, Wowza Media Systems, LLC. All rights reserved.
+ * This code is licensed pursuant to the Wowza Public License version 1.0, available at www.wowza.com/legal.
+ */
+package com.wowza.wms.plugin.s3upload;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.wowza.util.StringUtils;
+import com.wowza.wms.application.IApplicationInstance;
+import com.wowza.wms.application.WMSProperties;
+
+/**
+ * POSTs each batch of events as a JSON array to s3UploadEventWebhookUrl.
+ * Progress events for the same recording in a batch are coalesced so only the latest is sent.
+ * Failed requests are retried s3UploadEventWebhookRetries times, waiting s3UploadEventWebhookRetryDelay milliseconds and doubling each time. Client errors other than 429 aren't retried.
+ */
+public class WebhookEventSink implements IUploadEventSink
+{
+	private URL url = null;
+	private int retries = 3;
+	private long retryDelay = 1000l;
+	private int timeout = 10000;
+
+	@Override
+	public void init(IApplicationInstance appInstance, WMSProperties properties)
+	{
+		String urlStr = properties.getPropertyStr("s3UploadEventWebhookUrl");
+		if (StringUtils.isEmpty(urlStr))
+			throw new IllegalArgumentException("s3UploadEventWebhookUrl not set");
+		try
+		{
+			url = new URL(urlStr);
+		}
+		catch (IOException e)
+		{
+			throw new IllegalArgumentException("Invalid s3UploadEventWebhookUrl: " + urlStr, e);
+		}
+		retries = properties.getPropertyInt("s3UploadEventWebhookRetries", retries);
+		retryDelay = properties.getPropertyLong("s3UploadEventWebhookRetryDelay", retryDelay);
+		timeout = properties.getPropertyInt("s3UploadEventWebhookTimeout", timeout);
+	}
+
+	@Override
+	public void send(List<UploadEvent> events) throws Exception
+	{
+		byte[] body = toJSON(coalesce(events)).getBytes(StandardCharsets.UTF_8);
+		long delay = retryDelay;
+		int attempt = 0;
+		while (true)
+		{
+			IOException error = null;
+			try
+			{
+				int status = post(body);
+				if (status >= 200 && status < 300)
+					return;
+				error = new IOException("webhook returned status: " + status);
+				if (status >= 400 && status < 500 && status != 429)
+					throw error;
+			}
+			catch (IOException e)
+			{
+				if (e == error)
+					throw e;
+				error = e;
+			}
+			if (attempt++ >= retries)
+				throw error;
+			Thread.sleep(delay);
+			delay *= 2;
+		}
+	}
+
+	@Override
+	public void close()
+	{
+		// no-op
+	}
+
+	private int post(byte[] body) throws IOException
+	{
+		HttpURLConnection connection = (HttpURLConnection)url.openConnection();
+		connection.setRequestMethod("POST");
+		connection.setConnectTimeout(timeout);
+		connection.setReadTimeout(timeout);
+		connection.setDoOutput(true);
+		connection.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+		connection.setFixedLengthStreamingMode(body.length);
+		OutputStream out = connection.getOutputStream();
+		try
+		{
+			out.write(body);
+		}
+		finally
+		{
+			out.close();
+		}
+		int status = connection.getResponseCode();
+		// read the response so the connection can be kept alive and reused.
+		InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+		if (in != null)
+		{
+			try
+			{
+				byte[] buffer = new byte[1024];
+				while (in.read(buffer) != -1)
+					;
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		return status;
+	}
+
+	static List<UploadEvent> coalesce(List<UploadEvent> events)
+	{
+		Map<String, Integer> lastProgress = new HashMap<String, Integer>();
+		for (int i = 0; i < events.size(); i++)
+		{
+			UploadEvent event = events.get(i);
+			if (event.getType() == UploadEvent.Type.PROGRESS)
+				lastProgress.put(event.getContext() + "/" + event.getMediaName(), i);
+		}
+		List<UploadEvent> coalesced = new ArrayList<UploadEvent>();
+		for (int i = 0; i < events.size(); i++)
+		{
+			UploadEvent event = events.get(i);
+			if (event.getType() != UploadEvent.Type.PROGRESS || lastProgress.get(event.getContext() + "/" + event.getMediaName()) == i)
+				coalesced.add(event);
+		}
+		return coalesced;
+	}
+
+	private static String toJSON(List<UploadEvent> events)
+	{
+		StringBuilder json = new StringBuilder("[");
+		for (int i = 0; i < events.size(); i++)
+		{
+			if (i > 0)
+				json.append(",");
+			json.append(events.get(i).toJSON());
+		}
+		return json.append("]").toString();
+	}
+}
@@ -0,0 +1,36 @@
+/*
+ * This code and all components (c) Copyright 2006 - 2018, Wowza Media Systems, LLC. All rights reserved.
+ * This code is licensed pursuant to the Wowza Public License version 1.0, available at www.wowza.com/legal.
+ */
+package com.wowza.util;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Compile and test stand-in for the Wowza Streaming Engine class of the same name. Only the methods used by the module are provided. Not packaged.
+ */
+public class JSON
+{
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	private final JsonNode root;
+
+	public JSON(String json)
+	{
+		try
+		{
+			root = mapper.readTree(json);
+		}
+		catch (Exception e)
+		{
+			throw new IllegalArgumentException("Invalid JSON: " + json, e);
+		}
+	}
+
+	public String getString(String name)
+	{
+		JsonNode node = root.get(name);
+		return node == null || node.isNull() ? null : node.asText();
+	}
+}
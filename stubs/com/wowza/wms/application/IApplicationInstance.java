@@ -0,0 +1,32 @@
+/*
+ * This code and all components (c) Copyright 2006 - 2018, Wowza Media Systems, LLC. All rights reserved.
+ * This code is licensed pursuant to the Wowza Public License version 1.0, available at www.wowza.com/legal.
+ */
+package com.wowza.wms.application;
+
+import com.wowza.wms.stream.IMediaWriterActionNotify;
+import com.wowza.wms.vhost.IVHost;
+
+/**
+ * Compile and test stand-in for the Wowza Streaming Engine interface of the same name. Only the methods used by the module are provided. Not packaged.
+ */
+public interface IApplicationInstance
+{
+	public String getContextStr();
+
+	public WMSProperties getProperties();
+
+	public WMSProperties getStreamRecorderProperties();
+
+	public String getStreamStorageDir();
+
+	public String decodeStorageDir(String path);
+
+	public int getApplicationInstanceTouchTimeout();
+
+	public void touch();
+
+	public IVHost getVHost();
+
+	public void addMediaWriterListener(IMediaWriterActionNotify listener);
+}
@@ -0,0 +1,55 @@
+/*
+ * This code and all components (c) Copyright 2006 - 2018, Wowza Media Systems, LLC. All rights reserved.
+ * This code is licensed pursuant to the Wowza Public License version 1.0, available at www.wowza.com/legal.
+ */
+package com.wowza.wms.application;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compile and test stand-in for the Wowza Streaming Engine class of the same name. Only the methods used by the module are provided. Not packaged.
+ */
+public class WMSProperties
+{
+	private final Map<String, Object> properties = new HashMap<String, Object>();
+
+	public synchronized void setProperty(String name, Object value)
+	{
+		properties.put(name, value);
+	}
+
+	public synchronized Object getProperty(String name)
+	{
+		return properties.get(name);
+	}
+
+	public String getPropertyStr(String name)
+	{
+		return getPropertyStr(name, null);
+	}
+
+	public String getPropertyStr(String name, String defaultValue)
+	{
+		Object value = getProperty(name);
+		return value == null ? defaultValue : value.toString();
+	}
+
+	public boolean getPropertyBoolean(String name, boolean defaultValue)
+	{
+		String value = getPropertyStr(name);
+		return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+	}
+
+	public int getPropertyInt(String name, int defaultValue)
+	{
+		String value = getPropertyStr(name);
+		return value == null ? defaultValue : Integer.parseInt(value.trim());
+	}
+
+	public long getPropertyLong(String name, long defaultValue)
+	{
+		String value = getPropertyStr(name);
+		return value == null ? defaultValue : Long.parseLong(value.trim());
+	}
+}
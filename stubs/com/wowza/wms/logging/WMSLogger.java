@@ -0,0 +1,51 @@
+/*
+ * This code and all components (c) Copyright 2006 - 2018, Wowza Media Systems, LLC. All rights reserved.
+ * This code is licensed pursuant to the Wowza Public License version 1.0, available at www.wowza.com/legal.
+ */
+package com.wowza.wms.logging;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Compile and test stand-in for the Wowza Streaming Engine class of the same name, logging to java.util.logging. Only the methods used by the module are provided. Not packaged.
+ */
+public class WMSLogger
+{
+	private final Logger logger;
+
+	public WMSLogger(String name)
+	{
+		logger = Logger.getLogger(name);
+	}
+
+	public void info(Object message)
+	{
+		logger.log(Level.INFO, String.valueOf(message));
+	}
+
+	public void info(Object message, String category, String event)
+	{
+		logger.log(Level.INFO, String.valueOf(message));
+	}
+
+	public void warn(Object message)
+	{
+		logger.log(Level.WARNING, String.valueOf(message));
+	}
+
+	public void warn(Object message, String category, String event)
+	{
+		logger.log(Level.WARNING, String.valueOf(message));
+	}
+
+	public void warn(Object message, Throwable t)
+	{
+		logger.log(Level.WARNING, String.valueOf(message), t);
+	}
+
+	public void error(Object message, Throwable t)
+	{
+		logger.log(Level.SEVERE, String.valueOf(message), t);
+	}
+}
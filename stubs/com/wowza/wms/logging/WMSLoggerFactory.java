@@ -0,0 +1,18 @@
+/*
+ * This code and all components (c) Copyright 2006 - 2018, Wowza Media Systems, LLC. All rights reserved.
+ * This code is licensed pursuant to the Wowza Public License version 1.0, available at www.wowza.com/legal.
+ */
+package com.wowza.wms.logging;
+
+import com.wowza.wms.application.IApplicationInstance;
+
+/**
+ * Compile and test stand-in for the Wowza Streaming Engine class of the same name. Only the methods used by the module are provided. Not packaged.
+ */
+public class WMSLoggerFactory
+{
+	public static WMSLogger getLoggerObj(IApplicationInstance appInstance)
+	{
+		return new WMSLogger("wowza." + appInstance.getContextStr());
+	}
+}
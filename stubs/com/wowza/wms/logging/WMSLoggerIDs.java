@@ -0,0 +1,14 @@
+/*
+ * This code and all components (c) Copyright 2006 - 2018, Wowza Media Systems, LLC. All rights reserved.
+ * This code is licensed pursuant to the Wowza Public License version 1.0, available at www.wowza.com/legal.
+ */
+package com.wowza.wms.logging;
+
+/**
+ * Compile and test stand-in for the Wowza Streaming Engine class of the same name. Only the fields used by the module are provided. Not packaged.
+ */
+public class WMSLoggerIDs
+{
+	public static final String CAT_application = "application";
+	public static final String EVT_comment = "comment";
+}
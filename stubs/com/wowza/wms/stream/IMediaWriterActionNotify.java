@@ -0,0 +1,18 @@
+/*
+ * This code and all components (c) Copyright 2006 - 2018, Wowza Media Systems, LLC. All rights reserved.
+ * This code is licensed pursuant to the Wowza Public License version 1.0, available at www.wowza.com/legal.
+ */
+package com.wowza.wms.stream;
+
+import java.io.File;
+import java.util.Map;
+
+/**
+ * Compile and test stand-in for the Wowza Streaming Engine interface of the same name. Not packaged.
+ */
+public interface IMediaWriterActionNotify
+{
+	public void onWriteComplete(IMediaStream stream, File file);
+
+	public void onFLVAddMetadata(IMediaStream stream, Map<String, Object> extraMetadata);
+}
@@ -0,0 +1,25 @@
+/*
+ * This code and all components (c) Copyright 2006 - 2018, Wowza Media Systems, LLC. All rights reserved.
+ * This code is licensed pursuant to the Wowza Public License version 1.0, available at www.wowza.com/legal.
+ */
+package com.wowza.wms.util;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Compile and test stand-in for the Wowza Streaming Engine vhost thread pool, running tasks on the supplied executor. Not packaged.
+ */
+public class WMSThreadPool
+{
+	private final Executor executor;
+
+	public WMSThreadPool(Executor executor)
+	{
+		this.executor = executor;
+	}
+
+	public void execute(Runnable runnable)
+	{
+		executor.execute(runnable);
+	}
+}
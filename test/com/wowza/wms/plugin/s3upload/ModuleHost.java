@@ -0,0 +1,49 @@
+/*
+ * This code and all components (c) Copyright 2006 - 2018, Wowza Media Systems, LLC. All rights reserved.
+ * This code is licensed pursuant to the Wowza Public License version 1.0, available at www.wowza.com/legal.
+ */
+package com.wowza.wms.plugin.s3upload;
+
+import java.io.File;
+
+/**
+ * Runs the module in its own process so that it can be killed part way through an upload.
+ * Arguments: S3 endpoint, storage dir and the recordings (relative to the storage dir) to finish once the module has started.
+ */
+public class ModuleHost
+{
+	static final String BUCKET_NAME = "recordings";
+	static final long PART_SIZE = 5242880l;
+
+	/**
+	 * Module settings shared by the in process and forked runs: the S3 stand-in, 5MB parts and short retry delays.
+	 */
+	static TestApplicationInstance createAppInstance(String endpoint, File storageDir)
+	{
+		TestApplicationInstance appInstance = new TestApplicationInstance("recovery/_definst_", storageDir);
+		appInstance.setProperty("s3UploadBucketName", BUCKET_NAME);
+		appInstance.setProperty("s3UploadAccessKey", "test");
+		appInstance.setProperty("s3UploadSecretKey", "test");
+		appInstance.setProperty("s3UploadRegion", "us-east-1");
+		appInstance.setProperty("s3UploadServiceEndpoint", endpoint);
+		appInstance.setProperty("s3UploadSocketTimeout", 1000);
+		appInstance.setProperty("s3UploadCacheBucketRegion", false);
+		appInstance.setProperty("s3UploadMultipartUploadThreshold", PART_SIZE);
+		appInstance.setProperty("s3UploadMinimumUploadPartSize", PART_SIZE);
+		appInstance.setProperty("s3UploadRestartFailedUploadTimeout", 500);
+		appInstance.setProperty("s3UploadInitRetryDelay", 200);
+		return appInstance;
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		File storageDir = new File(args[1]);
+		TestApplicationInstance appInstance = createAppInstance(args[0], storageDir);
+		ModuleS3Upload module = new ModuleS3Upload();
+		module.onAppStart(appInstance);
+		for (int i = 2; i < args.length; i++)
+			appInstance.writeComplete(new File(storageDir, args[i]));
+		// killed by the test.
+		Thread.sleep(Long.MAX_VALUE);
+	}
+}
@@ -0,0 +1,402 @@
+/*
+ * This code and all components (c) Copyright 2006 - 2018, Wowza Media Systems, LLC. All rights reserved.
+ * This code is licensed pursuant to the Wowza Public License version 1.0, available at www.wowza.com/legal.
+ */
+package com.wowza.wms.plugin.s3upload;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import com.amazonaws.services.s3.transfer.PersistableUpload;
+
+/**
+ * Fault injection against the S3 stand-in: a crash part way through a multipart upload, torn and stale checkpoints, 5xx, SlowDown, dropped and timed out
+ * requests, and a stop while a checkpoint is being saved. Each scenario checks that every recording ends up in the bucket exactly once, with the right
+ * content, and that nothing is left behind. The bytes sent more than once and the time taken to recover are written to target/recovery-report.csv.
+ */
+public class RecoveryTest
+{
+	private static final long TIMEOUT = 60000l;
+	private static final int RECORDING_SIZE = 16 * 1024 * 1024 + 12345;
+	private static final List<String> report = new ArrayList<String>();
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private S3StandIn s3;
+	private File storageDir;
+	private Map<String, String> expected = new HashMap<String, String>();
+	private long expectedBytes = 0;
+	private List<TestApplicationInstance> appInstances = new ArrayList<TestApplicationInstance>();
+	private List<ModuleS3Upload> modules = new ArrayList<ModuleS3Upload>();
+
+	@Before
+	public void setUp() throws IOException
+	{
+		s3 = new S3StandIn(ModuleHost.BUCKET_NAME);
+		storageDir = folder.newFolder("content");
+	}
+
+	@After
+	public void tearDown() throws InterruptedException
+	{
+		for (int i = 0; i < modules.size(); i++)
+		{
+			modules.get(i).onAppStop(appInstances.get(i));
+			appInstances.get(i).shutdown();
+		}
+		s3.stop();
+	}
+
+	@AfterClass
+	public static void writeReport() throws IOException
+	{
+		File target = new File("target");
+		target.mkdirs();
+		PrintWriter writer = new PrintWriter(new File(target, "recovery-report.csv"), "UTF-8");
+		try
+		{
+			writer.println("scenario,bytes sent,bytes re-sent,time to recover ms");
+			System.out.println("scenario,bytes sent,bytes re-sent,time to recover ms");
+			for (String row : report)
+			{
+				writer.println(row);
+				System.out.println(row);
+			}
+		}
+		finally
+		{
+			writer.close();
+		}
+	}
+
+	@Test
+	public void crashMidMultipartResumes() throws Exception
+	{
+		long seed = Long.getLong("recovery.seed", System.nanoTime());
+		createRecording("crash.mp4", RECORDING_SIZE, seed);
+		createRecording("crash2.mp4", RECORDING_SIZE, seed + 1);
+		// four parts each, stop somewhere in the first seven.
+		int parts = 1 + new Random(seed).nextInt(7);
+		s3.holdPartsAfter(parts);
+
+		String classPath = System.getProperty("surefire.test.class.path", System.getProperty("java.class.path"));
+		ProcessBuilder builder = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/java").getPath(), "-cp", classPath, ModuleHost.class.getName(), s3.getEndpoint(), storageDir.getPath(), "crash.mp4", "crash2.mp4");
+		builder.redirectErrorStream(true);
+		builder.redirectOutput(folder.newFile("module-host.log"));
+		Process process = builder.start();
+		try
+		{
+			long start = System.currentTimeMillis();
+			// and the next part is part way through when the module is killed.
+			while (s3.getPartsReceived() < parts || s3.getHeldParts() == 0)
+			{
+				if (!process.isAlive())
+					fail("module host exited: " + process.exitValue());
+				if (System.currentTimeMillis() - start > TIMEOUT)
+					fail("parts not received, seed: " + seed);
+				Thread.sleep(10);
+			}
+		}
+		finally
+		{
+			process.destroyForcibly();
+			process.waitFor(10, TimeUnit.SECONDS);
+			s3.dropParts();
+		}
+		long start = System.currentTimeMillis();
+		while (s3.getHeldParts() > 0 && System.currentTimeMillis() - start < TIMEOUT)
+			Thread.sleep(10);
+		long sentBeforeCrash = s3.getBytesReceived();
+		assertTrue("upload checkpoints left for restart", uploadFiles().size() > 0);
+
+		long restart = System.currentTimeMillis();
+		startModule(false);
+		long recovered = awaitRecovered();
+		assertRecovered();
+		record("crash mid-multipart (seed " + seed + ", " + parts + " parts)", restart, recovered);
+		assertTrue("resumed rather than sent again, seed: " + seed, s3.getBytesReceived() - sentBeforeCrash < expectedBytes);
+		assertTrue("parts cut off by the crash sent again, seed: " + seed, s3.getBytesReceived() > expectedBytes);
+	}
+
+	@Test
+	public void tornCheckpointAbortsOrphanAndKeepsKey() throws Exception
+	{
+		File file = createRecording("torn.mp4", RECORDING_SIZE, 1);
+		// another server's upload of the same key, started long before this recording.
+		String otherUploadId = s3.createMultipartUpload("torn.mp4", new Date(System.currentTimeMillis() - 3600000l), new byte[(int)ModuleHost.PART_SIZE]);
+		writeKeyManifest("torn.mp4", System.currentTimeMillis(), "torn.mp4");
+		String uploadId = s3.createMultipartUpload("torn.mp4", new byte[(int)ModuleHost.PART_SIZE]);
+		String checkpoint = new PersistableUpload(ModuleHost.BUCKET_NAME, "torn.mp4", file.getAbsolutePath(), uploadId, ModuleHost.PART_SIZE, ModuleHost.PART_SIZE).serialize();
+		writeUploadFile("torn.mp4", checkpoint.substring(0, checkpoint.length() / 2));
+
+		long restart = System.currentTimeMillis();
+		startModule(true);
+		long recovered = awaitRecovered();
+		assertEquals("uploads started before the recording were aborted", Collections.singletonList("torn.mp4"), s3.getMultipartUploadKeys());
+		s3.abortMultipartUpload(otherUploadId);
+		assertRecovered();
+		assertFalse("orphan pushed the upload onto a new version", s3.getObjects().containsKey("torn_0.mp4"));
+		record("torn checkpoint", restart, recovered);
+	}
+
+	@Test
+	public void abortedMultipartRestartsOnce() throws Exception
+	{
+		File file = createRecording("expired.mp4", RECORDING_SIZE, 2);
+		// aborted by a lifecycle rule while the server was down.
+		String uploadId = s3.createMultipartUpload("expired.mp4", new byte[(int)ModuleHost.PART_SIZE]);
+		writeUploadFile("expired.mp4", new PersistableUpload(ModuleHost.BUCKET_NAME, "expired.mp4", file.getAbsolutePath(), uploadId, ModuleHost.PART_SIZE, ModuleHost.PART_SIZE).serialize());
+		s3.abortMultipartUpload(uploadId);
+
+		long restart = System.currentTimeMillis();
+		startModule(false);
+		long recovered = awaitRecovered();
+		assertRecovered();
+		assertEquals("started again once instead of failing every retry", 1, s3.getInitiated());
+		record("NoSuchUpload checkpoint", restart, recovered);
+	}
+
+	@Test
+	public void internalErrors() throws Exception
+	{
+		runFaultStorm(S3StandIn.Fault.INTERNAL_ERROR, 16, 0, "5xx InternalError");
+	}
+
+	@Test
+	public void slowDown() throws Exception
+	{
+		runFaultStorm(S3StandIn.Fault.SLOW_DOWN, 8, 0, "503 SlowDown");
+	}
+
+	@Test
+	public void droppedConnections() throws Exception
+	{
+		runFaultStorm(S3StandIn.Fault.DROP, 16, 0, "dropped connection");
+	}
+
+	@Test
+	public void timeouts() throws Exception
+	{
+		runFaultStorm(S3StandIn.Fault.STALL, 8, 1500, "timeout");
+	}
+
+	@Test
+	public void unavailableAtStartup() throws Exception
+	{
+		s3.setBucketUnavailable(true);
+		long start = System.currentTimeMillis();
+		TestApplicationInstance appInstance = startModule(false);
+		appInstance.writeComplete(createRecording("queued.mp4", RECORDING_SIZE, 3));
+		Thread.sleep(1000);
+		assertTrue("nothing sent while S3 is down", s3.getObjects().isEmpty());
+		s3.setBucketUnavailable(false);
+
+		long available = System.currentTimeMillis();
+		long recovered = awaitRecovered();
+		assertRecovered();
+		record("5xx at startup", available, recovered);
+		assertTrue(available - start >= 1000);
+	}
+
+	@Test
+	public void compressedSidecarRetried() throws Exception
+	{
+		s3.injectFaults(S3StandIn.Fault.INTERNAL_ERROR, 8, 0);
+		TestApplicationInstance appInstance = startModule(false, ".vtt");
+		File sidecar = createRecording("captions.vtt", 1024 * 1024, 7);
+		// stored gzipped.
+		expected.put("captions.vtt", S3StandIn.md5(ContentPolicy.gzip(sidecar)));
+		appInstance.writeComplete(sidecar);
+		long recovered = awaitRecovered();
+		assertRecovered();
+		assertEquals("every fault was hit", 0, s3.getRemainingFaults());
+		record("compressed sidecar, 5xx InternalError x8", s3.getLastFaultTime(), recovered);
+	}
+
+	@Test
+	public void stopDuringCheckpointSave() throws Exception
+	{
+		runStopDuringCheckpoint(true, "stop during onPersistableTransfer");
+	}
+
+	@Test
+	public void stopDuringCheckpointSaveLosesCheckpoint() throws Exception
+	{
+		runStopDuringCheckpoint(false, "stop during onPersistableTransfer, checkpoint lost");
+	}
+
+	private void runFaultStorm(S3StandIn.Fault fault, int count, long stallTime, String scenario) throws Exception
+	{
+		s3.injectFaults(fault, count, stallTime);
+		TestApplicationInstance appInstance = startModule(false);
+		appInstance.writeComplete(createRecording("storm.mp4", RECORDING_SIZE, 4));
+		appInstance.writeComplete(createRecording("storm.vtt", 1024 * 1024, 5));
+		long recovered = awaitRecovered();
+		assertRecovered();
+		assertEquals("every fault was hit", 0, s3.getRemainingFaults());
+		record(scenario + " x" + count, s3.getLastFaultTime(), recovered);
+	}
+
+	private void runStopDuringCheckpoint(boolean saved, String scenario) throws Exception
+	{
+		TestApplicationInstance appInstance = startModule(false);
+		appInstance.holdCheckpoints();
+		s3.holdPartsAfter(0);
+		appInstance.writeComplete(createRecording("stopped.mp4", RECORDING_SIZE, 6));
+		assertTrue("checkpoint saved", appInstance.awaitCheckpointHeld(TIMEOUT));
+		modules.remove(modules.size() - 1).onAppStop(appInstance);
+		appInstance.releaseCheckpoints(saved);
+		s3.releaseParts();
+		appInstances.remove(appInstances.size() - 1).shutdown();
+		assertEquals(saved ? 1 : 0, readUploadFileLength("stopped.mp4") > 0 ? 1 : 0);
+
+		long restart = System.currentTimeMillis();
+		startModule(false);
+		long recovered = awaitRecovered();
+		assertRecovered();
+		record(scenario, restart, recovered);
+	}
+
+	private TestApplicationInstance startModule(boolean versionFile)
+	{
+		return startModule(versionFile, null);
+	}
+
+	private TestApplicationInstance startModule(boolean versionFile, String compressSuffixes)
+	{
+		TestApplicationInstance appInstance = ModuleHost.createAppInstance(s3.getEndpoint(), storageDir);
+		appInstance.setProperty("s3UploadVersionFile", versionFile);
+		if (compressSuffixes != null)
+			appInstance.setProperty("s3UploadCompressSuffixes", compressSuffixes);
+		ModuleS3Upload module = new ModuleS3Upload();
+		module.onAppStart(appInstance);
+		appInstances.add(appInstance);
+		modules.add(module);
+		return appInstance;
+	}
+
+	private File createRecording(String name, int size, long seed) throws IOException
+	{
+		byte[] data = new byte[size];
+		new Random(seed).nextBytes(data);
+		File file = new File(storageDir, name);
+		FileOutputStream fos = new FileOutputStream(file);
+		try
+		{
+			fos.write(data);
+		}
+		finally
+		{
+			fos.close();
+		}
+		expected.put(name, S3StandIn.md5(data));
+		expectedBytes += size;
+		return file;
+	}
+
+	private void writeUploadFile(String mediaName, String content) throws IOException
+	{
+		FileOutputStream fos = new FileOutputStream(new File(storageDir, mediaName + ".upload"));
+		try
+		{
+			fos.write(content.getBytes(StandardCharsets.UTF_8));
+		}
+		finally
+		{
+			fos.close();
+		}
+	}
+
+	/**
+	 * Saves the key a previous run of the module would have given the recording before starting its upload.
+	 */
+	private void writeKeyManifest(String mediaName, long created, String key) throws IOException
+	{
+		Properties keyManifest = new Properties();
+		keyManifest.setProperty(mediaName, created + " " + key);
+		FileOutputStream fos = new FileOutputStream(new File(storageDir, ModuleS3Upload.KEY_MANIFEST_FILE_NAME + "-recovery__definst_"));
+		try
+		{
+			keyManifest.store(fos, null);
+		}
+		finally
+		{
+			fos.close();
+		}
+	}
+
+	private long readUploadFileLength(String mediaName)
+	{
+		return new File(storageDir, mediaName + ".upload").length();
+	}
+
+	private List<File> uploadFiles()
+	{
+		List<File> uploadFiles = new ArrayList<File>();
+		File[] files = storageDir.listFiles();
+		if (files != null)
+		{
+			for (File file : files)
+			{
+				if (file.getName().endsWith(".upload"))
+					uploadFiles.add(file);
+			}
+		}
+		return uploadFiles;
+	}
+
+	private long awaitRecovered() throws InterruptedException
+	{
+		long start = System.currentTimeMillis();
+		while (!s3.getObjects().keySet().containsAll(expected.keySet()) || !uploadFiles().isEmpty())
+		{
+			if (System.currentTimeMillis() - start > TIMEOUT)
+				fail("not recovered, objects: " + s3.getObjects().keySet() + ", multipart uploads: " + s3.getMultipartUploadKeys() + ", checkpoints: " + uploadFiles());
+			Thread.sleep(20);
+		}
+		return System.currentTimeMillis();
+	}
+
+	private void assertRecovered()
+	{
+		Map<String, S3StandIn.StoredObject> objects = s3.getObjects();
+		assertEquals("objects in the bucket", expected.keySet(), objects.keySet());
+		for (Map.Entry<String, String> entry : expected.entrySet())
+		{
+			assertEquals("content of " + entry.getKey(), entry.getValue(), objects.get(entry.getKey()).md5);
+			assertEquals("times " + entry.getKey() + " was completed", Integer.valueOf(1), s3.getCompletions().get(entry.getKey()));
+		}
+		assertEquals("multipart uploads left behind", new ArrayList<String>(), s3.getMultipartUploadKeys());
+	}
+
+	private void record(String scenario, long recoveryStart, long recovered)
+	{
+		long sent = s3.getBytesReceived();
+		synchronized(report)
+		{
+			report.add("\"" + scenario + "\"," + sent + "," + (sent - expectedBytes) + "," + (recovered - recoveryStart));
+		}
+	}
+}
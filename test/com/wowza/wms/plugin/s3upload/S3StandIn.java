@@ -0,0 +1,688 @@
+/*
+ * This code and all components (c) Copyright 2006 - 2018, Wowza Media Systems, LLC. All rights reserved.
+ * This code is licensed pursuant to the Wowza Public License version 1.0, available at www.wowza.com/legal.
+ */
+package com.wowza.wms.plugin.s3upload;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A single bucket, path style, S3 stand-in that speaks just enough of the REST API for TransferManager: bucket and object HEAD, PUT object and the multipart upload calls.
+ * Objects are kept as their size and MD5. Faults can be injected into the data requests (PUT object, upload part and complete) and part uploads can be held to stop an upload at a known point.
+ */
+class S3StandIn implements HttpHandler
+{
+	enum Fault
+	{
+		// 500 InternalError, retried by the SDK.
+		INTERNAL_ERROR,
+		// 503 SlowDown, retried by the SDK with the throttling backoff.
+		SLOW_DOWN,
+		// request read then the connection closed without a response.
+		DROP,
+		// no response until the client times out, then the connection is closed.
+		STALL
+	}
+
+	static class StoredObject
+	{
+		final long size;
+		final String md5;
+
+		StoredObject(long size, String md5)
+		{
+			this.size = size;
+			this.md5 = md5;
+		}
+	}
+
+	private static class MultipartUpload
+	{
+		final String key;
+		final String uploadId = UUID.randomUUID().toString().replace("-", "");
+		final Date initiated;
+		final Map<Integer, byte[]> parts = new TreeMap<Integer, byte[]>();
+
+		MultipartUpload(String key)
+		{
+			this(key, new Date());
+		}
+
+		MultipartUpload(String key, Date initiated)
+		{
+			this.key = key;
+			this.initiated = initiated;
+		}
+	}
+
+	private static final Pattern PART_PATTERN = Pattern.compile("<PartNumber>(\\d+)</PartNumber>");
+
+	private final String bucketName;
+	private final HttpServer server;
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+	private final Map<String, StoredObject> objects = new HashMap<String, StoredObject>();
+	private final Map<String, MultipartUpload> uploads = new LinkedHashMap<String, MultipartUpload>();
+	private final Map<String, Integer> completions = new HashMap<String, Integer>();
+	private final AtomicLong bytesReceived = new AtomicLong();
+	private final AtomicInteger partsReceived = new AtomicInteger();
+	private final AtomicInteger initiated = new AtomicInteger();
+	private final AtomicInteger heldParts = new AtomicInteger();
+
+	private Fault fault = null;
+	private int faultCount = 0;
+	private long lastFaultTime = 0;
+	private long stallTime = 0;
+	private int holdPartsAfter = -1;
+	private int partsAdmitted = 0;
+	private CountDownLatch partGate = null;
+	private boolean dropHeldParts = false;
+	private boolean bucketUnavailable = false;
+
+	S3StandIn(String bucketName) throws IOException
+	{
+		this.bucketName = bucketName;
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", this);
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	String getEndpoint()
+	{
+		return "http://127.0.0.1:" + server.getAddress().getPort();
+	}
+
+	void stop()
+	{
+		releaseParts();
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Fail the next count data requests with the given fault. A stall lasts for stallTime milliseconds.
+	 */
+	synchronized void injectFaults(Fault fault, int count, long stallTime)
+	{
+		this.fault = fault;
+		this.faultCount = count;
+		this.stallTime = stallTime;
+	}
+
+	synchronized int getRemainingFaults()
+	{
+		return faultCount;
+	}
+
+	synchronized long getLastFaultTime()
+	{
+		return lastFaultTime;
+	}
+
+	/**
+	 * Let count part uploads through and hold the rest until releaseParts is called. Parts are sent in parallel so they are counted as they arrive.
+	 */
+	synchronized void holdPartsAfter(int count)
+	{
+		holdPartsAfter = count;
+		partsAdmitted = 0;
+		partGate = new CountDownLatch(1);
+		dropHeldParts = false;
+	}
+
+	void releaseParts()
+	{
+		releaseParts(false);
+	}
+
+	/**
+	 * Closes the held part uploads without reading the rest of their bodies, as if the client had gone away half way through them. Whatever the client
+	 * had already written may be sitting in the socket buffers, which would otherwise let the parts complete after the client has been killed.
+	 */
+	void dropParts()
+	{
+		releaseParts(true);
+	}
+
+	private void releaseParts(boolean drop)
+	{
+		CountDownLatch gate;
+		synchronized(this)
+		{
+			dropHeldParts = drop;
+			gate = partGate;
+			partGate = null;
+			holdPartsAfter = -1;
+		}
+		if (gate != null)
+			gate.countDown();
+	}
+
+	synchronized void setBucketUnavailable(boolean bucketUnavailable)
+	{
+		this.bucketUnavailable = bucketUnavailable;
+	}
+
+	long getBytesReceived()
+	{
+		return bytesReceived.get();
+	}
+
+	int getPartsReceived()
+	{
+		return partsReceived.get();
+	}
+
+	/**
+	 * Part uploads that have been held and haven't finished reading their body yet.
+	 */
+	int getHeldParts()
+	{
+		return heldParts.get();
+	}
+
+	int getInitiated()
+	{
+		return initiated.get();
+	}
+
+	synchronized Map<String, StoredObject> getObjects()
+	{
+		return new HashMap<String, StoredObject>(objects);
+	}
+
+	synchronized Map<String, Integer> getCompletions()
+	{
+		return new HashMap<String, Integer>(completions);
+	}
+
+	synchronized List<String> getMultipartUploadKeys()
+	{
+		List<String> keys = new ArrayList<String>();
+		for (MultipartUpload upload : uploads.values())
+			keys.add(upload.key);
+		return keys;
+	}
+
+	/**
+	 * Starts a multipart upload directly, as a previous run of the module would have, and stores the given parts.
+	 */
+	synchronized String createMultipartUpload(String key, byte[]... parts)
+	{
+		return createMultipartUpload(key, new Date(), parts);
+	}
+
+	synchronized String createMultipartUpload(String key, Date initiated, byte[]... parts)
+	{
+		MultipartUpload upload = new MultipartUpload(key, initiated);
+		for (int i = 0; i < parts.length; i++)
+			upload.parts.put(i + 1, parts[i]);
+		uploads.put(upload.uploadId, upload);
+		return upload.uploadId;
+	}
+
+	synchronized void abortMultipartUpload(String uploadId)
+	{
+		uploads.remove(uploadId);
+	}
+
+	@Override
+	public void handle(HttpExchange exchange) throws IOException
+	{
+		try
+		{
+			String method = exchange.getRequestMethod();
+			String path = URLDecoder.decode(exchange.getRequestURI().getRawPath(), "UTF-8");
+			Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+			String bucketPath = "/" + bucketName;
+			if (!path.startsWith(bucketPath))
+			{
+				sendError(exchange, 404, "NoSuchBucket", "The specified bucket does not exist");
+				return;
+			}
+			String key = path.length() > bucketPath.length() + 1 ? path.substring(bucketPath.length() + 1) : null;
+
+			if (key == null)
+			{
+				if ("HEAD".equals(method))
+					headBucket(exchange);
+				else if ("GET".equals(method) && query.containsKey("uploads"))
+					listMultipartUploads(exchange, query);
+				else
+					sendError(exchange, 501, "NotImplemented", method + " " + path);
+			}
+			else if ("HEAD".equals(method))
+				headObject(exchange, key);
+			else if ("PUT".equals(method) && query.containsKey("uploadId"))
+				uploadPart(exchange, key, query);
+			else if ("PUT".equals(method))
+				putObject(exchange, key);
+			else if ("POST".equals(method) && query.containsKey("uploads"))
+				initiateMultipartUpload(exchange, key);
+			else if ("POST".equals(method) && query.containsKey("uploadId"))
+				completeMultipartUpload(exchange, key, query);
+			else if ("GET".equals(method) && query.containsKey("uploadId"))
+				listParts(exchange, key, query);
+			else if ("DELETE".equals(method) && query.containsKey("uploadId"))
+				abortMultipartUpload(exchange, query);
+			else
+				sendError(exchange, 501, "NotImplemented", method + " " + path);
+		}
+		catch (IOException e)
+		{
+			// client went away.
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		finally
+		{
+			exchange.close();
+		}
+	}
+
+	private void headBucket(HttpExchange exchange) throws IOException
+	{
+		synchronized(this)
+		{
+			if (bucketUnavailable)
+			{
+				exchange.sendResponseHeaders(503, -1);
+				return;
+			}
+		}
+		exchange.getResponseHeaders().set("x-amz-bucket-region", "us-east-1");
+		exchange.sendResponseHeaders(200, -1);
+	}
+
+	private void headObject(HttpExchange exchange, String key) throws IOException
+	{
+		StoredObject object;
+		synchronized(this)
+		{
+			object = objects.get(key);
+		}
+		if (object == null)
+		{
+			exchange.sendResponseHeaders(404, -1);
+			return;
+		}
+		exchange.getResponseHeaders().set("ETag", "\"" + object.md5 + "\"");
+		exchange.sendResponseHeaders(200, -1);
+	}
+
+	private void putObject(HttpExchange exchange, String key) throws IOException, InterruptedException
+	{
+		byte[] data = readPayload(exchange, null);
+		if (injectFault(exchange))
+			return;
+		String md5 = md5(data);
+		synchronized(this)
+		{
+			objects.put(key, new StoredObject(data.length, md5));
+			incrementCompletions(key);
+		}
+		exchange.getResponseHeaders().set("ETag", "\"" + md5 + "\"");
+		exchange.sendResponseHeaders(200, -1);
+	}
+
+	private void initiateMultipartUpload(HttpExchange exchange, String key) throws IOException
+	{
+		MultipartUpload upload = new MultipartUpload(key);
+		synchronized(this)
+		{
+			uploads.put(upload.uploadId, upload);
+		}
+		initiated.incrementAndGet();
+		sendXml(exchange, 200, "<InitiateMultipartUploadResult><Bucket>" + bucketName + "</Bucket><Key>" + escape(key) + "</Key><UploadId>" + upload.uploadId + "</UploadId></InitiateMultipartUploadResult>");
+	}
+
+	private void uploadPart(HttpExchange exchange, String key, Map<String, String> query) throws IOException, InterruptedException
+	{
+		CountDownLatch gate;
+		synchronized(this)
+		{
+			gate = holdPartsAfter >= 0 && partsAdmitted >= holdPartsAfter ? partGate : null;
+			if (gate == null)
+				partsAdmitted++;
+		}
+		byte[] data = readPayload(exchange, gate);
+		if (injectFault(exchange))
+			return;
+		int partNumber = Integer.parseInt(query.get("partNumber"));
+		synchronized(this)
+		{
+			MultipartUpload upload = uploads.get(query.get("uploadId"));
+			if (upload == null || !upload.key.equals(key))
+			{
+				sendError(exchange, 404, "NoSuchUpload", "The specified upload does not exist");
+				return;
+			}
+			upload.parts.put(partNumber, data);
+		}
+		partsReceived.incrementAndGet();
+		exchange.getResponseHeaders().set("ETag", "\"" + md5(data) + "\"");
+		exchange.sendResponseHeaders(200, -1);
+	}
+
+	private void completeMultipartUpload(HttpExchange exchange, String key, Map<String, String> query) throws IOException, InterruptedException
+	{
+		String body = new String(readBody(exchange), StandardCharsets.UTF_8);
+		if (injectFault(exchange))
+			return;
+		String md5;
+		synchronized(this)
+		{
+			MultipartUpload upload = uploads.get(query.get("uploadId"));
+			if (upload == null || !upload.key.equals(key))
+			{
+				sendError(exchange, 404, "NoSuchUpload", "The specified upload does not exist");
+				return;
+			}
+			MessageDigest digest = newDigest();
+			long size = 0;
+			Matcher matcher = PART_PATTERN.matcher(body);
+			while (matcher.find())
+			{
+				byte[] part = upload.parts.get(Integer.parseInt(matcher.group(1)));
+				if (part == null)
+				{
+					sendError(exchange, 400, "InvalidPart", "One or more of the specified parts could not be found");
+					return;
+				}
+				digest.update(part);
+				size += part.length;
+			}
+			md5 = toHex(digest.digest());
+			uploads.remove(upload.uploadId);
+			objects.put(key, new StoredObject(size, md5));
+			incrementCompletions(key);
+		}
+		sendXml(exchange, 200, "<CompleteMultipartUploadResult><Location>" + getEndpoint() + "/" + bucketName + "/" + escape(key) + "</Location><Bucket>" + bucketName + "</Bucket><Key>" + escape(key) + "</Key><ETag>\"" + md5 + "-1\"</ETag></CompleteMultipartUploadResult>");
+	}
+
+	private void listParts(HttpExchange exchange, String key, Map<String, String> query) throws IOException
+	{
+		int maxParts = query.containsKey("max-parts") ? Integer.parseInt(query.get("max-parts")) : 1000;
+		int marker = query.containsKey("part-number-marker") ? Integer.parseInt(query.get("part-number-marker")) : 0;
+		StringBuilder xml = new StringBuilder();
+		synchronized(this)
+		{
+			MultipartUpload upload = uploads.get(query.get("uploadId"));
+			if (upload == null || !upload.key.equals(key))
+			{
+				sendError(exchange, 404, "NoSuchUpload", "The specified upload does not exist");
+				return;
+			}
+			int count = 0;
+			int next = marker;
+			boolean truncated = false;
+			StringBuilder parts = new StringBuilder();
+			for (Map.Entry<Integer, byte[]> part : upload.parts.entrySet())
+			{
+				if (part.getKey() <= marker)
+					continue;
+				if (count == maxParts)
+				{
+					truncated = true;
+					break;
+				}
+				parts.append("<Part><PartNumber>").append(part.getKey()).append("</PartNumber><LastModified>").append(formatDate(upload.initiated)).append("</LastModified><ETag>\"").append(md5(part.getValue())).append("\"</ETag><Size>").append(part.getValue().length).append("</Size></Part>");
+				next = part.getKey();
+				count++;
+			}
+			xml.append("<ListPartsResult><Bucket>").append(bucketName).append("</Bucket><Key>").append(escape(key)).append("</Key><UploadId>").append(upload.uploadId).append("</UploadId>");
+			xml.append("<PartNumberMarker>").append(marker).append("</PartNumberMarker><NextPartNumberMarker>").append(next).append("</NextPartNumberMarker><MaxParts>").append(maxParts).append("</MaxParts><IsTruncated>").append(truncated).append("</IsTruncated>");
+			xml.append(parts).append("</ListPartsResult>");
+		}
+		sendXml(exchange, 200, xml.toString());
+	}
+
+	private void abortMultipartUpload(HttpExchange exchange, Map<String, String> query) throws IOException
+	{
+		synchronized(this)
+		{
+			if (uploads.remove(query.get("uploadId")) == null)
+			{
+				sendError(exchange, 404, "NoSuchUpload", "The specified upload does not exist");
+				return;
+			}
+		}
+		exchange.sendResponseHeaders(204, -1);
+	}
+
+	private void listMultipartUploads(HttpExchange exchange, Map<String, String> query) throws IOException
+	{
+		String prefix = query.containsKey("prefix") ? query.get("prefix") : "";
+		StringBuilder xml = new StringBuilder("<ListMultipartUploadsResult><Bucket>" + bucketName + "</Bucket><KeyMarker></KeyMarker><UploadIdMarker></UploadIdMarker><Prefix>" + escape(prefix) + "</Prefix><MaxUploads>1000</MaxUploads><IsTruncated>false</IsTruncated>");
+		synchronized(this)
+		{
+			for (MultipartUpload upload : uploads.values())
+			{
+				if (upload.key.startsWith(prefix))
+					xml.append("<Upload><Key>").append(escape(upload.key)).append("</Key><UploadId>").append(upload.uploadId).append("</UploadId><Initiated>").append(formatDate(upload.initiated)).append("</Initiated></Upload>");
+			}
+		}
+		xml.append("</ListMultipartUploadsResult>");
+		sendXml(exchange, 200, xml.toString());
+	}
+
+	private boolean injectFault(HttpExchange exchange) throws IOException, InterruptedException
+	{
+		Fault current;
+		long stall;
+		synchronized(this)
+		{
+			if (fault == null || faultCount <= 0)
+				return false;
+			faultCount--;
+			current = fault;
+			stall = stallTime;
+			lastFaultTime = System.currentTimeMillis();
+		}
+		switch (current)
+		{
+		case INTERNAL_ERROR:
+			sendError(exchange, 500, "InternalError", "We encountered an internal error. Please try again.");
+			break;
+		case SLOW_DOWN:
+			sendError(exchange, 503, "SlowDown", "Please reduce your request rate.");
+			break;
+		case STALL:
+			Thread.sleep(stall);
+			// closing without a response drops the connection.
+			break;
+		case DROP:
+			break;
+		}
+		return true;
+	}
+
+	private synchronized void incrementCompletions(String key)
+	{
+		Integer count = completions.get(key);
+		completions.put(key, count == null ? 1 : count + 1);
+	}
+
+	/**
+	 * Reads the request body, holding it at the gate half way through if there is one. Everything the client sent counts towards the bytes received,
+	 * including requests that are then failed and bodies the client gave up on part way through.
+	 */
+	private byte[] readPayload(HttpExchange exchange, CountDownLatch gate) throws IOException, InterruptedException
+	{
+		InputStream in = exchange.getRequestBody();
+		ByteArrayOutputStream raw = new ByteArrayOutputStream();
+		String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+		long length = contentLength != null ? Long.parseLong(contentLength) : -1;
+		if (gate != null)
+			heldParts.incrementAndGet();
+		try
+		{
+			if (gate != null)
+			{
+				// so that a crash while the part is held lands in the middle of it.
+				readBody(in, raw, length / 2);
+				gate.await();
+				synchronized(this)
+				{
+					if (dropHeldParts)
+						throw new IOException("part dropped after " + raw.size() + " bytes");
+				}
+			}
+			readBody(in, raw, Long.MAX_VALUE);
+			if (length >= 0 && raw.size() < length)
+				throw new IOException("request body ended after " + raw.size() + " of " + length + " bytes");
+		}
+		catch (IOException e)
+		{
+			bytesReceived.addAndGet(raw.size());
+			throw e;
+		}
+		finally
+		{
+			if (gate != null)
+				heldParts.decrementAndGet();
+		}
+		byte[] data = decodePayload(exchange, raw.toByteArray());
+		bytesReceived.addAndGet(data.length);
+		return data;
+	}
+
+	private byte[] decodePayload(HttpExchange exchange, byte[] body)
+	{
+		String sha = exchange.getRequestHeaders().getFirst("x-amz-content-sha256");
+		if (sha == null || !sha.startsWith("STREAMING-"))
+			return body;
+
+		// aws-chunked: hex-size;chunk-signature=...\r\n data \r\n, ending with a zero size chunk.
+		ByteArrayOutputStream data = new ByteArrayOutputStream(body.length);
+		int pos = 0;
+		while (pos < body.length)
+		{
+			int lineEnd = pos;
+			while (body[lineEnd] != '\r')
+				lineEnd++;
+			String header = new String(body, pos, lineEnd - pos, StandardCharsets.US_ASCII);
+			int size = Integer.parseInt(header.substring(0, header.indexOf(';')), 16);
+			pos = lineEnd + 2;
+			if (size == 0)
+				break;
+			data.write(body, pos, size);
+			pos += size + 2;
+		}
+		return data.toByteArray();
+	}
+
+	private static byte[] readBody(HttpExchange exchange) throws IOException
+	{
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		readBody(exchange.getRequestBody(), body, Long.MAX_VALUE);
+		return body.toByteArray();
+	}
+
+	private static void readBody(InputStream in, ByteArrayOutputStream body, long limit) throws IOException
+	{
+		byte[] buffer = new byte[65536];
+		int len;
+		while (body.size() < limit && (len = in.read(buffer, 0, (int)Math.min(buffer.length, limit - body.size()))) != -1)
+			body.write(buffer, 0, len);
+	}
+
+	private static void sendXml(HttpExchange exchange, int status, String xml) throws IOException
+	{
+		byte[] body = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" + xml).getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/xml");
+		exchange.sendResponseHeaders(status, body.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(body);
+		out.close();
+	}
+
+	private static void sendError(HttpExchange exchange, int status, String code, String message) throws IOException
+	{
+		sendXml(exchange, status, "<Error><Code>" + code + "</Code><Message>" + message + "</Message><RequestId>" + UUID.randomUUID() + "</RequestId></Error>");
+	}
+
+	private static Map<String, String> parseQuery(String rawQuery) throws IOException
+	{
+		Map<String, String> query = new HashMap<String, String>();
+		if (rawQuery == null)
+			return query;
+		for (String param : rawQuery.split("&"))
+		{
+			int index = param.indexOf('=');
+			if (index < 0)
+				query.put(URLDecoder.decode(param, "UTF-8"), "");
+			else
+				query.put(URLDecoder.decode(param.substring(0, index), "UTF-8"), URLDecoder.decode(param.substring(index + 1), "UTF-8"));
+		}
+		return query;
+	}
+
+	private static String formatDate(Date date)
+	{
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return format.format(date);
+	}
+
+	private static String escape(String value)
+	{
+		return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+	}
+
+	static String md5(byte[] data)
+	{
+		MessageDigest digest = newDigest();
+		digest.update(data);
+		return toHex(digest.digest());
+	}
+
+	static MessageDigest newDigest()
+	{
+		try
+		{
+			return MessageDigest.getInstance("MD5");
+		}
+		catch (Exception e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	static String toHex(byte[] bytes)
+	{
+		StringBuilder hex = new StringBuilder();
+		for (byte b : bytes)
+			hex.append(String.format("%02x", b & 0xff));
+		return hex.toString();
+	}
+}
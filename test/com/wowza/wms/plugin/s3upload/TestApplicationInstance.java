@@ -0,0 +1,182 @@
+/*
+ * This code and all components (c) Copyright 2006 - 2018, Wowza Media Systems, LLC. All rights reserved.
+ * This code is licensed pursuant to the Wowza Public License version 1.0, available at www.wowza.com/legal.
+ */
+package com.wowza.wms.plugin.s3upload;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import com.wowza.wms.application.IApplicationInstance;
+import com.wowza.wms.application.WMSProperties;
+import com.wowza.wms.stream.IMediaWriterActionNotify;
+import com.wowza.wms.util.WMSThreadPool;
+import com.wowza.wms.vhost.IVHost;
+
+/**
+ * Application instance for driving the module outside of the server. Recordings are finished with writeComplete and the vhost thread pool can hold back the
+ * upload checkpoint writes so a stop can be made to land in the middle of onPersistableTransfer.
+ */
+class TestApplicationInstance implements IApplicationInstance, IVHost, Executor
+{
+	private final String contextStr;
+	private final File storageDir;
+	private final WMSProperties properties = new WMSProperties();
+	private final WMSProperties recorderProperties = new WMSProperties();
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+	private final WMSThreadPool threadPool = new WMSThreadPool(this);
+	private final List<IMediaWriterActionNotify> listeners = new ArrayList<IMediaWriterActionNotify>();
+	private final List<Runnable> heldCheckpoints = new ArrayList<Runnable>();
+	private CountDownLatch checkpointHeld = new CountDownLatch(1);
+	private boolean holdCheckpoints = false;
+
+	TestApplicationInstance(String contextStr, File storageDir)
+	{
+		this.contextStr = contextStr;
+		this.storageDir = storageDir;
+	}
+
+	void setProperty(String name, Object value)
+	{
+		properties.setProperty(name, value);
+	}
+
+	/**
+	 * Calls the module's write listeners as the recorder does when a recording is closed.
+	 */
+	void writeComplete(File file)
+	{
+		List<IMediaWriterActionNotify> notify;
+		synchronized(listeners)
+		{
+			notify = new ArrayList<IMediaWriterActionNotify>(listeners);
+		}
+		for (IMediaWriterActionNotify listener : notify)
+			listener.onWriteComplete(null, file);
+	}
+
+	synchronized void holdCheckpoints()
+	{
+		holdCheckpoints = true;
+		checkpointHeld = new CountDownLatch(1);
+	}
+
+	boolean awaitCheckpointHeld(long timeout) throws InterruptedException
+	{
+		CountDownLatch latch;
+		synchronized(this)
+		{
+			latch = checkpointHeld;
+		}
+		return latch.await(timeout, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Runs the held checkpoint writes, or throws them away as if the server had gone down before they ran.
+	 */
+	void releaseCheckpoints(boolean run)
+	{
+		List<Runnable> held;
+		synchronized(this)
+		{
+			holdCheckpoints = false;
+			held = new ArrayList<Runnable>(heldCheckpoints);
+			heldCheckpoints.clear();
+		}
+		if (run)
+		{
+			for (Runnable runnable : held)
+				runnable.run();
+		}
+	}
+
+	void shutdown() throws InterruptedException
+	{
+		executor.shutdown();
+		executor.awaitTermination(10, TimeUnit.SECONDS);
+	}
+
+	@Override
+	public void execute(Runnable runnable)
+	{
+		synchronized(this)
+		{
+			// the only task ProgressListener hands to the pool without event sinks or retention set is the checkpoint write.
+			Class<?> enclosing = runnable.getClass().getEnclosingClass();
+			if (holdCheckpoints && enclosing != null && enclosing.getSimpleName().equals("ProgressListener"))
+			{
+				heldCheckpoints.add(runnable);
+				checkpointHeld.countDown();
+				return;
+			}
+		}
+		executor.execute(runnable);
+	}
+
+	@Override
+	public WMSThreadPool getThreadPool()
+	{
+		return threadPool;
+	}
+
+	@Override
+	public String getContextStr()
+	{
+		return contextStr;
+	}
+
+	@Override
+	public WMSProperties getProperties()
+	{
+		return properties;
+	}
+
+	@Override
+	public WMSProperties getStreamRecorderProperties()
+	{
+		return recorderProperties;
+	}
+
+	@Override
+	public String getStreamStorageDir()
+	{
+		return storageDir.getPath();
+	}
+
+	@Override
+	public String decodeStorageDir(String path)
+	{
+		return path;
+	}
+
+	@Override
+	public int getApplicationInstanceTouchTimeout()
+	{
+		return 2000;
+	}
+
+	@Override
+	public void touch()
+	{
+	}
+
+	@Override
+	public IVHost getVHost()
+	{
+		return this;
+	}
+
+	@Override
+	public void addMediaWriterListener(IMediaWriterActionNotify listener)
+	{
+		synchronized(listeners)
+		{
+			listeners.add(listener);
+		}
+	}
+}